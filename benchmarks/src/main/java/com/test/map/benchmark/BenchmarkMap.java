@@ -0,0 +1,21 @@
+package com.test.map.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Uniform view over the map implementations under benchmark. Keys and values are {@code long}s,
+ * each implementation converts them into its native representation (boxed objects or byte arrays).
+ */
+public interface BenchmarkMap extends Closeable {
+
+    Object get(long key) throws IOException;
+
+    void put(long key, long value) throws IOException;
+
+    Object remove(long key) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
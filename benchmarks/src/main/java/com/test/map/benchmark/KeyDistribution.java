@@ -0,0 +1,57 @@
+package com.test.map.benchmark;
+
+import java.util.Random;
+
+/**
+ * Distributions of the keys requested by the benchmarks. All of them produce keys from {@code [0, keySpace)}.
+ */
+public enum KeyDistribution {
+
+    UNIFORM {
+        @Override
+        long[] keys(long keySpace, int count, long seed) {
+            Random random = new Random(seed);
+            long[] keys = new long[count];
+
+            for (int i = 0; i < count; i++) {
+                keys[i] = (random.nextLong() & Long.MAX_VALUE) % keySpace;
+            }
+
+            return keys;
+        }
+    },
+
+    ZIPFIAN {
+        @Override
+        long[] keys(long keySpace, int count, long seed) {
+            ZipfianGenerator generator = new ZipfianGenerator(keySpace, new Random(seed));
+            long[] keys = new long[count];
+
+            for (int i = 0; i < count; i++) {
+                keys[i] = generator.next();
+            }
+
+            return keys;
+        }
+    },
+
+    SEQUENTIAL {
+        @Override
+        long[] keys(long keySpace, int count, long seed) {
+            long start = (seed & Long.MAX_VALUE) % keySpace;
+            long[] keys = new long[count];
+
+            for (int i = 0; i < count; i++) {
+                keys[i] = (start + i) % keySpace;
+            }
+
+            return keys;
+        }
+    };
+
+    /**
+     * Generates a ring of {@code count} keys which is replayed by the benchmark methods.
+     * Pre-generation keeps the cost of random number generation out of the measurements.
+     */
+    abstract long[] keys(long keySpace, int count, long seed);
+}
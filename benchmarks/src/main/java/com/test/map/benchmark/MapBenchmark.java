@@ -0,0 +1,158 @@
+package com.test.map.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point operations against a map pre-populated with keys {@code [0, size)}.
+ * <p>
+ * The full matrix is big and the largest sizes need a lot of memory (and disk space for the file backed
+ * {@code DiskHahMap}), so usually a subset of parameters is selected from the command line, e.g.:
+ * <pre>
+ * java -Xmx16g -jar target/benchmarks.jar MapBenchmark -p map=LINEAR_HASH_MAP,HASH_MAP -p size=1000000
+ * </pre>
+ * Note that the {@code DISK_HASH_MAP_IN_MEMORY} variant is limited by the 2GB capacity of {@code InMemoryChannel}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapBenchmark {
+
+    private static final int KEYS_RING_SIZE = 1 << 16;
+
+    private static final int GET_PERCENT = 80;
+    private static final int PUT_PERCENT = 15;
+
+    @Param({
+            "LINEAR_HASH_MAP",
+            "CONCURRENT_LINEAR_HASH_MAP",
+            "OPEN_ADDRESSING_LINEAR_HASH_MAP",
+            "LONG_LINEAR_HASH_MAP",
+            "BINARY_OFF_HEAP_MAP",
+            "DISK_HASH_MAP_IN_MEMORY",
+            "DISK_HASH_MAP_FILE",
+            "DISK_HASH_MAP_MAPPED",
+            "HASH_MAP",
+            "CONCURRENT_HASH_MAP"
+    })
+    public MapKind map;
+
+    @Param({"UNIFORM", "ZIPFIAN", "SEQUENTIAL"})
+    public KeyDistribution distribution;
+
+    @Param({"1000", "100000", "10000000", "100000000"})
+    public int size;
+
+    private BenchmarkMap target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.target = this.map.create(this.size);
+
+        for (long key = 0; key < this.size; key++) {
+            this.target.put(key, key);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.target.close();
+    }
+
+    @Benchmark
+    public Object get(Keys keys) throws IOException {
+        return this.target.get(keys.next());
+    }
+
+    @Benchmark
+    public void put(Keys keys) throws IOException {
+        long key = keys.next();
+        this.target.put(key, ~key);
+    }
+
+    /**
+     * Removes a key and puts it back, so that the size of the map stays the same during the whole trial.
+     */
+    @Benchmark
+    public Object remove(Keys keys) throws IOException {
+        long key = keys.next();
+
+        Object removed = this.target.remove(key);
+        this.target.put(key, key);
+
+        return removed;
+    }
+
+    /**
+     * {@value GET_PERCENT}% of gets, {@value PUT_PERCENT}% of puts and the rest are removes
+     * (followed by putting the key back, just like in {@link #remove(Keys)}).
+     */
+    @Benchmark
+    public Object mixed(Keys keys) throws IOException {
+        long key = keys.next();
+        int operation = keys.nextOperation();
+
+        if (operation < GET_PERCENT) {
+            return this.target.get(key);
+        }
+
+        if (operation < GET_PERCENT + PUT_PERCENT) {
+            this.target.put(key, ~key);
+            return null;
+        }
+
+        Object removed = this.target.remove(key);
+        this.target.put(key, key);
+
+        return removed;
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+
+        private long[] keys;
+        private byte[] operations;
+        private int position;
+
+        @Setup(Level.Trial)
+        public void setUp(MapBenchmark benchmark) {
+            long seed = Thread.currentThread().getId();
+            Random random = new Random(seed);
+
+            this.keys = benchmark.distribution.keys(benchmark.size, KEYS_RING_SIZE, seed);
+            this.operations = new byte[KEYS_RING_SIZE];
+
+            for (int i = 0; i < this.operations.length; i++) {
+                this.operations[i] = (byte) random.nextInt(100);
+            }
+        }
+
+        long next() {
+            this.position = (this.position + 1) & (KEYS_RING_SIZE - 1);
+            return this.keys[this.position];
+        }
+
+        int nextOperation() {
+            // position is already advanced by the next() call
+            return this.operations[this.position];
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.test.map.benchmark;
+
+import com.test.map.ConcurrentLinearHashMap;
+import com.test.map.LinearHashMap;
+import com.test.map.LongLinearHashMap;
+import com.test.map.OpenAddressingLinearHashMap;
+import com.test.map.disk.DiskHahMap;
+import com.test.map.disk.DiskMapOptions;
+import com.test.map.disk.InMemoryChannel;
+import com.test.map.disk.Utils;
+import com.test.map.offheap.BinaryOffHeapMap;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map implementations which can be benchmarked.
+ */
+public enum MapKind {
+
+    LINEAR_HASH_MAP {
+        @Override
+        BenchmarkMap create(int expectedSize) {
+            LinearHashMap<Long, Long> map = new LinearHashMap<>(expectedSize, 0.75);
+
+            return new BenchmarkMap() {
+                @Override
+                public Object get(long key) {
+                    return map.get(key);
+                }
+
+                @Override
+                public void put(long key, long value) {
+                    map.put(key, value);
+                }
+
+                @Override
+                public Object remove(long key) {
+                    return map.remove(key);
+                }
+            };
+        }
+    },
+
+    CONCURRENT_LINEAR_HASH_MAP {
+        @Override
+        BenchmarkMap create(int expectedSize) {
+            ConcurrentLinearHashMap<Long, Long> map = new ConcurrentLinearHashMap<>(expectedSize, 0.75);
+
+            return new BenchmarkMap() {
+                @Override
+                public Object get(long key) {
+                    return map.get(key);
+                }
+
+                @Override
+                public void put(long key, long value) {
+                    map.put(key, value);
+                }
+
+                @Override
+                public Object remove(long key) {
+                    return map.remove(key);
+                }
+            };
+        }
+    },
+
+    OPEN_ADDRESSING_LINEAR_HASH_MAP {
+        @Override
+        BenchmarkMap create(int expectedSize) {
+            OpenAddressingLinearHashMap<Long, Long> map = new OpenAddressingLinearHashMap<>(expectedSize, 0.75);
+
+            return new BenchmarkMap() {
+                @Override
+                public Object get(long key) {
+                    return map.get(key);
+                }
+
+                @Override
+                public void put(long key, long value) {
+                    map.put(key, value);
+                }
+
+                @Override
+                public Object remove(long key) {
+                    return map.remove(key);
+                }
+            };
+        }
+    },
+
+    LONG_LINEAR_HASH_MAP {
+        @Override
+        BenchmarkMap create(int expectedSize) {
+            LongLinearHashMap<Long> map = new LongLinearHashMap<>(expectedSize, 0.75);
+
+            return new BenchmarkMap() {
+                @Override
+                public Object get(long key) {
+                    return map.get(key);
+                }
+
+                @Override
+                public void put(long key, long value) {
+                    map.put(key, value);
+                }
+
+                @Override
+                public Object remove(long key) {
+                    return map.remove(key);
+                }
+            };
+        }
+    },
+
+    BINARY_OFF_HEAP_MAP {
+        @Override
+        BenchmarkMap create(int expectedSize) {
+            BinaryOffHeapMap map = new BinaryOffHeapMap(expectedSize);
+
+            return new BenchmarkMap() {
+                @Override
+                public Object get(long key) {
+                    return map.get(bytes(key));
+                }
+
+                @Override
+                public void put(long key, long value) {
+                    map.put(bytes(key), bytes(value));
+                }
+
+                @Override
+                public Object remove(long key) {
+                    return map.remove(bytes(key));
+                }
+
+                @Override
+                public void close() {
+                    map.close();
+                }
+            };
+        }
+    },
+
+    DISK_HASH_MAP_IN_MEMORY {
+        @Override
+        BenchmarkMap create(int expectedSize) throws IOException {
+            DiskHahMap map = new DiskHahMap(new InMemoryChannel(), new InMemoryChannel(), diskBuckets(expectedSize));
+            return diskMap(map, null);
+        }
+    },
+
+    DISK_HASH_MAP_FILE {
+        @Override
+        BenchmarkMap create(int expectedSize) throws IOException {
+            Path dataFile = Files.createTempFile("disk-map-benchmark", ".data");
+            Path fsmFile = Files.createTempFile("disk-map-benchmark", ".fsm");
+
+            FileChannel dataChannel = Utils.openRWChannel(dataFile);
+            FileChannel fsmChannel = Utils.openRWChannel(fsmFile);
+
+            DiskHahMap map = new DiskHahMap(dataChannel, fsmChannel, diskBuckets(expectedSize));
+
+            return diskMap(map, () -> {
+                Files.deleteIfExists(dataFile);
+                Files.deleteIfExists(fsmFile);
+            });
+        }
+    },
+
+    DISK_HASH_MAP_MAPPED {
+        @Override
+        BenchmarkMap create(int expectedSize) throws IOException {
+            Path dataFile = Files.createTempFile("disk-map-benchmark", ".data");
+            Path fsmFile = Files.createTempFile("disk-map-benchmark", ".fsm");
+
+            DiskHahMap map = DiskHahMap.createMapped(dataFile, fsmFile, diskBuckets(expectedSize), DiskMapOptions.defaults());
+
+            return diskMap(map, () -> {
+                Files.deleteIfExists(dataFile);
+                Files.deleteIfExists(fsmFile);
+            });
+        }
+    },
+
+    HASH_MAP {
+        @Override
+        BenchmarkMap create(int expectedSize) {
+            return jdkMap(new HashMap<>(expectedSize * 4 / 3 + 1));
+        }
+    },
+
+    CONCURRENT_HASH_MAP {
+        @Override
+        BenchmarkMap create(int expectedSize) {
+            return jdkMap(new ConcurrentHashMap<>(expectedSize * 4 / 3 + 1));
+        }
+    };
+
+    /**
+     * Approximate number of 8 bytes key-value pairs fitting into a single {@link DiskHahMap} page of the default size.
+     */
+    private static final int DISK_ITEMS_PER_BUCKET = 128;
+
+    abstract BenchmarkMap create(int expectedSize) throws IOException;
+
+    private static int diskBuckets(int expectedSize) {
+        return Math.max(1, expectedSize / DISK_ITEMS_PER_BUCKET);
+    }
+
+    /**
+     * @param cleanup action performed after the map (and so its storages) is closed, may be null
+     */
+    private static BenchmarkMap diskMap(DiskHahMap map, Cleanup cleanup) {
+        return new BenchmarkMap() {
+            @Override
+            public Object get(long key) throws IOException {
+                return map.get(bytes(key));
+            }
+
+            @Override
+            public void put(long key, long value) throws IOException {
+                map.put(bytes(key), bytes(value));
+            }
+
+            @Override
+            public Object remove(long key) throws IOException {
+                byte[] bytes = bytes(key);
+                map.remove(bytes);
+
+                return bytes;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // flushes dirty pages and the FSM, so the storages are left consistent
+                map.close();
+
+                if (cleanup != null) {
+                    cleanup.run();
+                }
+            }
+        };
+    }
+
+    private static BenchmarkMap jdkMap(Map<Long, Long> map) {
+        return new BenchmarkMap() {
+            @Override
+            public Object get(long key) {
+                return map.get(key);
+            }
+
+            @Override
+            public void put(long key, long value) {
+                map.put(key, value);
+            }
+
+            @Override
+            public Object remove(long key) {
+                return map.remove(key);
+            }
+        };
+    }
+
+    static byte[] bytes(long value) {
+        byte[] bytes = new byte[Long.BYTES];
+
+        for (int i = 0; i < Long.BYTES; i++, value >>= Byte.SIZE) {
+            bytes[i] = (byte) value;
+        }
+
+        return bytes;
+    }
+
+    private interface Cleanup {
+        void run() throws IOException;
+    }
+}
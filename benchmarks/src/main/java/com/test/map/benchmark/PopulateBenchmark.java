@@ -0,0 +1,84 @@
+package com.test.map.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time needed to fill an empty map with {@code size} distinct keys, this includes all the growth
+ * (splits, rehashing, overflow pages allocation) performed by the implementations along the way.
+ * Maps are created with the default (small) initial size to make sure growth is exercised.
+ * <p>
+ * The only exception is {@code LINEAR_HASH_MAP} filled beyond {@link #LINEAR_HASH_MAP_GROWTH_LIMIT}: it can't grow
+ * past its upfront allocated segments, so it's created with the target size and its growth isn't measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PopulateBenchmark {
+
+    private static final int INITIAL_SIZE = 16;
+
+    // 2^16 segments of 16 buckets are allocated for small maps, splitting stops working once they are filled up
+    private static final int LINEAR_HASH_MAP_GROWTH_LIMIT = (1 << 16) * 16 * 3 / 4;
+
+    // odd multiplier makes the multiplication a bijection, so all the keys are distinct
+    private static final long SCRAMBLE = 0x9E3779B97F4A7C15L;
+
+    @Param({
+            "LINEAR_HASH_MAP",
+            "CONCURRENT_LINEAR_HASH_MAP",
+            "OPEN_ADDRESSING_LINEAR_HASH_MAP",
+            "LONG_LINEAR_HASH_MAP",
+            "BINARY_OFF_HEAP_MAP",
+            "DISK_HASH_MAP_IN_MEMORY",
+            "DISK_HASH_MAP_FILE",
+            "DISK_HASH_MAP_MAPPED",
+            "HASH_MAP",
+            "CONCURRENT_HASH_MAP"
+    })
+    public MapKind map;
+
+    @Param({"1000", "100000", "10000000", "100000000"})
+    public int size;
+
+    private BenchmarkMap target;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        boolean presized = this.map == MapKind.LINEAR_HASH_MAP && this.size > LINEAR_HASH_MAP_GROWTH_LIMIT;
+
+        this.target = this.map.create(presized ? this.size : INITIAL_SIZE);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        this.target.close();
+    }
+
+    @Benchmark
+    public BenchmarkMap populate() throws IOException {
+        for (long i = 0; i < this.size; i++) {
+            long key = i * SCRAMBLE;
+            this.target.put(key, i);
+        }
+
+        return this.target;
+    }
+}
@@ -0,0 +1,63 @@
+package com.test.map.benchmark;
+
+import java.util.Random;
+
+/**
+ * Zipfian distributed numbers from {@code [0, items)}, the lower numbers are the most popular ones.
+ * <p>
+ * The algorithm is described in "Quickly Generating Billion-Record Synthetic Databases" by Jim Gray et al.
+ * and is the same one used by YCSB.
+ */
+class ZipfianGenerator {
+
+    static final double DEFAULT_THETA = 0.99;
+
+    private final Random random;
+    private final long items;
+    private final double theta;
+
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    ZipfianGenerator(long items, Random random) {
+        this(items, DEFAULT_THETA, random);
+    }
+
+    ZipfianGenerator(long items, double theta, Random random) {
+        this.random = random;
+        this.items = items;
+        this.theta = theta;
+
+        double zeta2 = zeta(2, theta);
+
+        this.zetaN = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / this.zetaN);
+    }
+
+    long next() {
+        double u = this.random.nextDouble();
+        double uz = u * this.zetaN;
+
+        if (uz < 1.0) {
+            return 0;
+        }
+
+        if (uz < 1.0 + Math.pow(0.5, this.theta)) {
+            return 1;
+        }
+
+        long value = (long) (this.items * Math.pow(this.eta * u - this.eta + 1, this.alpha));
+        return Math.min(value, this.items - 1);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,339 @@
+package com.test.map;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe version of the {@link LinearHashMap}.
+ * <p>
+ * Segments serve as lock stripes: modifications of a bucket are performed under the lock of its segment,
+ * while reads don't take any locks at all. To make it possible, chains consist of immutable (except values) nodes,
+ * so a reader always sees a consistent chain: removal copies the nodes preceding the removed one
+ * and a split builds two new chains instead of relinking the existing nodes.
+ * <p>
+ * {@code hashBits} and {@code splitIndex} are published together through a single volatile field.
+ * A split publishes the buddy chain first, then the new state and only after that the shortened chain
+ * of the split bucket, so a reader which hasn't found a key re-checks the state and retries if it has changed.
+ */
+public class ConcurrentLinearHashMap<K, V> implements SimpleMap<K, V> {
+
+    private static final int BUCKET_HASH_BITS = 4;
+    private static final int SEGMENT_SIZE = 1 << BUCKET_HASH_BITS;
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    private final AtomicReferenceArray<Segment<K, V>> segments;
+    private final LongAdder size = new LongAdder();
+
+    private final double maxLoadFactor;
+
+    // Splits are performed one at a time, by one of the writers which noticed that the load factor is too high
+    private final ReentrantLock splitLock = new ReentrantLock();
+
+    // hashBits in the high half and splitIndex in the low half.
+    // Invariant: 0 <= splitIndex < 2 ^ (hashBits - 1) = 1 << (hashBits - 1)
+    private volatile long state;
+
+    public ConcurrentLinearHashMap() {
+        this(1 << 6, 0.75);
+    }
+
+    public ConcurrentLinearHashMap(int initialSize, double maxLoadFactor) {
+        int bucketsNum = (initialSize == 1)
+                ? 1
+                : (Integer.highestOneBit(initialSize - 1) << 1);
+
+        int segmentsNum = bucketsNum >>> BUCKET_HASH_BITS;
+
+        this.segments = new AtomicReferenceArray<>(Math.max(segmentsNum, MAX_SEGMENTS));
+        this.maxLoadFactor = maxLoadFactor;
+        this.state = state(Integer.SIZE - Integer.numberOfLeadingZeros(bucketsNum), 0);
+    }
+
+    @Override
+    public V get(K key) {
+        final int hash = hash(key);
+
+        while (true) {
+            final long state = this.state;
+
+            int index = indexFor(hash, state);
+            Segment<K, V> segment = this.segments.get(segmentIndex(index));
+
+            if (segment != null) {
+                for (Node<K, V> node = segment.buckets.get(bucketIndex(index)); node != null; node = node.next) {
+                    if (node.keyEqualsTo(key, hash)) {
+                        return node.value;
+                    }
+                }
+            }
+
+            // The key might have been moved to the buddy bucket by a concurrent split
+            if (state == this.state) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        final int hash = hash(key);
+
+        Segment<K, V> segment = lockSegmentFor(hash, true);
+        try {
+            int bucketIndex = bucketIndex(indexFor(hash, this.state));
+            Node<K, V> head = segment.buckets.get(bucketIndex);
+
+            for (Node<K, V> node = head; node != null; node = node.next) {
+                if (node.keyEqualsTo(key, hash)) {
+                    V oldValue = node.value;
+                    node.value = value;
+
+                    return oldValue;
+                }
+            }
+
+            segment.buckets.set(bucketIndex, new Node<>(key, hash, value, head));
+        } finally {
+            segment.unlock();
+        }
+
+        this.size.increment();
+        split();
+
+        return null;
+    }
+
+    @Override
+    public V remove(K key) {
+        final int hash = hash(key);
+
+        Segment<K, V> segment = lockSegmentFor(hash, false);
+        if (segment == null) {
+            return null;
+        }
+
+        try {
+            int bucketIndex = bucketIndex(indexFor(hash, this.state));
+            Node<K, V> head = segment.buckets.get(bucketIndex);
+
+            for (Node<K, V> node = head; node != null; node = node.next) {
+                if (!node.keyEqualsTo(key, hash)) {
+                    continue;
+                }
+
+                // Nodes are immutable, so copy all the nodes preceding the removed one
+                Node<K, V> newHead = node.next;
+                for (Node<K, V> prev = head; prev != node; prev = prev.next) {
+                    newHead = new Node<>(prev.key, prev.hash, prev.value, newHead);
+                }
+
+                segment.buckets.set(bucketIndex, newHead);
+                this.size.decrement();
+
+                return node.value;
+            }
+        } finally {
+            segment.unlock();
+        }
+
+        return null;
+    }
+
+    /**
+     * Locks the segment which contains the bucket for the given hash. A split could move the key to another bucket
+     * while we are waiting for the lock, so the bucket is recalculated after locking and locking is retried
+     * if the bucket now belongs to a different segment. A split can't happen while we hold the lock.
+     *
+     * @return locked segment or {@code null} if it doesn't exist and {@code create} is {@code false}
+     */
+    private Segment<K, V> lockSegmentFor(int hash, boolean create) {
+        while (true) {
+            int segmentIndex = segmentIndex(indexFor(hash, this.state));
+
+            Segment<K, V> segment = create
+                    ? getOrCreateSegment(segmentIndex)
+                    : this.segments.get(segmentIndex);
+
+            if (segment == null) {
+                return null;
+            }
+
+            segment.lock();
+
+            if (segmentIndex(indexFor(hash, this.state)) == segmentIndex) {
+                return segment;
+            }
+
+            segment.unlock();
+        }
+    }
+
+    private void split() {
+        if (this.loadFactor() < this.maxLoadFactor || !this.splitLock.tryLock()) {
+            return;
+        }
+
+        try {
+            // Stop splitting once all the segments are in use, chains just become longer after that
+            while (this.loadFactor() >= this.maxLoadFactor && bucketsNum() < maxBucketsNum()) {
+                splitNext();
+            }
+        } finally {
+            this.splitLock.unlock();
+        }
+    }
+
+    private void splitNext() {
+        final long state = this.state;
+        final int hashBits = hashBits(state);
+        final int splitIndex = splitIndex(state);
+
+        final int edgeBit = 1 << (hashBits - 1);
+        final int buddyIndex = splitIndex + edgeBit; // splitIndex + 2 ^ (hashBits - 1)
+
+        final Segment<K, V> segment = getOrCreateSegment(segmentIndex(splitIndex));
+        final Segment<K, V> buddySegment = getOrCreateSegment(segmentIndex(buddyIndex));
+
+        // Buddy segment index is never less than the split one, so locks are always taken in the same order
+        segment.lock();
+        if (buddySegment != segment) {
+            buddySegment.lock();
+        }
+
+        try {
+            final int splitBucketIndex = bucketIndex(splitIndex);
+            final Node<K, V> head = segment.buckets.get(splitBucketIndex);
+
+            Node<K, V> splitHead = null;
+            Node<K, V> buddyHead = null;
+
+            for (Node<K, V> node = head; node != null; node = node.next) {
+                if ((node.hash & edgeBit) != 0) {
+                    buddyHead = new Node<>(node.key, node.hash, node.value, buddyHead);
+                } else {
+                    splitHead = new Node<>(node.key, node.hash, node.value, splitHead);
+                }
+            }
+
+            // Order matters here, see the class level comment
+            buddySegment.buckets.set(bucketIndex(buddyIndex), buddyHead);
+            this.state = nextState(hashBits, splitIndex);
+            segment.buckets.set(splitBucketIndex, splitHead);
+        } finally {
+            if (buddySegment != segment) {
+                buddySegment.unlock();
+            }
+            segment.unlock();
+        }
+    }
+
+    private static long nextState(int hashBits, int splitIndex) {
+        splitIndex++;
+
+        if (splitIndex == (1 << (hashBits - 1))) {
+            hashBits++;
+            splitIndex = 0;
+        }
+
+        return state(hashBits, splitIndex);
+    }
+
+    private Segment<K, V> getOrCreateSegment(int index) {
+        Segment<K, V> segment = this.segments.get(index);
+
+        if (segment == null) {
+            Segment<K, V> newSegment = new Segment<>();
+
+            if (this.segments.compareAndSet(index, null, newSegment)) {
+                segment = newSegment;
+            } else {
+                segment = this.segments.get(index);
+            }
+        }
+
+        return segment;
+    }
+
+    private int hash(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int indexFor(int hash, long state) {
+        final int hashBits = hashBits(state);
+
+        int fullIndex = hash & mask(hashBits);
+        int halfIndex = fullIndex & ~(1 << (hashBits - 1));
+
+        return halfIndex < splitIndex(state) ? fullIndex : halfIndex;
+    }
+
+    private int bucketIndex(int index) {
+        return index & mask(BUCKET_HASH_BITS);
+    }
+
+    private int segmentIndex(int index) {
+        return index >>> BUCKET_HASH_BITS;
+    }
+
+    private static int mask(int nBits) {
+        return (1 << nBits) - 1;
+    }
+
+    private static long state(int hashBits, int splitIndex) {
+        return ((long) hashBits << Integer.SIZE) | splitIndex;
+    }
+
+    private static int hashBits(long state) {
+        return (int) (state >>> Integer.SIZE);
+    }
+
+    private static int splitIndex(long state) {
+        return (int) state;
+    }
+
+    private double loadFactor() {
+        return this.size.sum() / ((double) bucketsNum());
+    }
+
+    private int bucketsNum() {
+        final long state = this.state;
+        return (1 << (hashBits(state) - 1)) + splitIndex(state);
+    }
+
+    private int maxBucketsNum() {
+        return this.segments.length() * SEGMENT_SIZE;
+    }
+
+    private static class Segment<K, V> extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        final AtomicReferenceArray<Node<K, V>> buckets = new AtomicReferenceArray<>(SEGMENT_SIZE);
+    }
+
+    private static class Node<K, V> {
+
+        final K key;
+        final int hash;
+        volatile V value;
+
+        final Node<K, V> next;
+
+        Node(K key, int hash, V value, Node<K, V> next) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+
+        boolean keyEqualsTo(K key, int keyHash) {
+            return this.hash == keyHash && Objects.equals(this.key, key);
+        }
+    }
+}
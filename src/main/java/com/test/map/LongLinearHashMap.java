@@ -0,0 +1,309 @@
+package com.test.map;
+
+import java.util.Arrays;
+
+/**
+ * {@link LinearHashMap} specialized for {@code long} keys.
+ * <p>
+ * There are no per-entry objects: each segment keeps its entries in parallel arrays (keys, values and
+ * next entry indexes), buckets are chains of indexes within these arrays. Slots of the removed entries
+ * are linked into a free list and reused. Keys aren't boxed and hashes aren't stored as they are cheap
+ * to recompute from the key.
+ * <p>
+ * Segments are larger than in {@link LinearHashMap} to amortize arrays headers and to allow more buckets.
+ */
+@SuppressWarnings("unchecked")
+public class LongLinearHashMap<V> {
+
+    private static final int BUCKET_HASH_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << BUCKET_HASH_BITS;
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    private static final int NO_ENTRY = -1;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private final Segment<V>[] segments;
+    private int size;
+
+    private final double maxLoadFactor;
+
+    // Invariant: 0 <= splitIndex < 2 ^ (hashBits - 1) = 1 << (hashBits - 1)
+    private int hashBits;
+    private int splitIndex;
+
+    public LongLinearHashMap() {
+        this(1 << 6, 0.75);
+    }
+
+    public LongLinearHashMap(int initialSize, double maxLoadFactor) {
+        int bucketsNum = (initialSize == 1)
+                ? 1
+                : (Integer.highestOneBit(initialSize - 1) << 1);
+
+        int segmentsNum = bucketsNum >>> BUCKET_HASH_BITS;
+
+        this.segments = (Segment<V>[]) new Segment<?>[Math.max(segmentsNum, MAX_SEGMENTS)];
+        this.maxLoadFactor = maxLoadFactor;
+        this.hashBits = Integer.SIZE - Integer.numberOfLeadingZeros(bucketsNum);
+        this.splitIndex = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean containsKey(long key) {
+        int index = indexFor(hash(key));
+
+        Segment<V> segment = this.segments[segmentIndex(index)];
+        return segment != null && segment.find(bucketIndex(index), key) != NO_ENTRY;
+    }
+
+    public V get(long key) {
+        int index = indexFor(hash(key));
+
+        Segment<V> segment = this.segments[segmentIndex(index)];
+        if (segment == null) {
+            return null;
+        }
+
+        int entry = segment.find(bucketIndex(index), key);
+        if (entry == NO_ENTRY) {
+            return null;
+        }
+
+        return (V) segment.values[entry];
+    }
+
+    public V put(long key, V value) {
+        int index = indexFor(hash(key));
+        int bucketIndex = bucketIndex(index);
+
+        Segment<V> segment = getOrCreateSegment(segmentIndex(index));
+
+        int entry = segment.find(bucketIndex, key);
+        if (entry != NO_ENTRY) {
+            V oldValue = (V) segment.values[entry];
+            segment.values[entry] = value;
+
+            return oldValue;
+        }
+
+        segment.insert(bucketIndex, key, value);
+
+        this.size++;
+        split();
+
+        return null;
+    }
+
+    public V remove(long key) {
+        int index = indexFor(hash(key));
+        int bucketIndex = bucketIndex(index);
+
+        Segment<V> segment = this.segments[segmentIndex(index)];
+        if (segment == null) {
+            return null;
+        }
+
+        int prev = NO_ENTRY;
+        for (int entry = segment.heads[bucketIndex]; entry != NO_ENTRY; entry = segment.next[entry]) {
+            if (segment.keys[entry] == key) {
+                V oldValue = (V) segment.values[entry];
+                segment.unlink(bucketIndex, prev, entry);
+                segment.release(entry);
+
+                this.size--;
+
+                return oldValue;
+            }
+
+            prev = entry;
+        }
+
+        return null;
+    }
+
+    private void split() {
+        // Once all the segments are in use they just become denser
+        if (this.loadFactor() < this.maxLoadFactor || bucketsNum() == this.segments.length * SEGMENT_SIZE) {
+            return;
+        }
+
+        final Segment<V> segment = this.segments[segmentIndex(this.splitIndex)];
+        if (segment == null) {
+            incSplitIndex();
+            return;
+        }
+
+        final int splitBucketIndex = bucketIndex(this.splitIndex);
+        if (segment.heads[splitBucketIndex] == NO_ENTRY) {
+            incSplitIndex();
+            return;
+        }
+
+        final int edgeBit = 1 << (this.hashBits - 1);
+        final int buddyIndex = this.splitIndex + edgeBit; // splitIndex + 2 ^ (hashBits - 1)
+        final int buddyBucketIndex = bucketIndex(buddyIndex);
+
+        Segment<V> buddySegment = null;
+
+        int prev = NO_ENTRY;
+        int entry = segment.heads[splitBucketIndex];
+
+        do {
+            final int next = segment.next[entry];
+
+            if ((hash(segment.keys[entry]) & edgeBit) != 0) {
+                if (buddySegment == null) {
+                    buddySegment = getOrCreateSegment(segmentIndex(buddyIndex));
+                }
+
+                segment.unlink(splitBucketIndex, prev, entry);
+
+                if (buddySegment == segment) {
+                    // Both buckets are in the same segment, just relink the entry
+                    segment.link(buddyBucketIndex, entry);
+                } else {
+                    buddySegment.insert(buddyBucketIndex, segment.keys[entry], segment.values[entry]);
+                    segment.release(entry);
+                }
+            } else {
+                prev = entry;
+            }
+
+            entry = next;
+        } while (entry != NO_ENTRY);
+
+        incSplitIndex();
+    }
+
+    private void incSplitIndex() {
+        this.splitIndex++;
+
+        if (this.splitIndex == (1 << (this.hashBits - 1))) {
+            this.hashBits++;
+            this.splitIndex = 0;
+        }
+    }
+
+    private Segment<V> getOrCreateSegment(int index) {
+        Segment<V> segment = this.segments[index];
+
+        if (segment == null) {
+            this.segments[index] = segment = new Segment<>();
+        }
+
+        return segment;
+    }
+
+    private static int hash(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        return h ^ (h >>> 16);
+    }
+
+    private int indexFor(int hash) {
+        int fullIndex = hash & mask(this.hashBits);
+        int halfIndex = fullIndex & ~(1 << (this.hashBits - 1));
+
+        return halfIndex < this.splitIndex ? fullIndex : halfIndex;
+    }
+
+    private int bucketIndex(int index) {
+        return index & mask(BUCKET_HASH_BITS);
+    }
+
+    private int segmentIndex(int index) {
+        return index >>> BUCKET_HASH_BITS;
+    }
+
+    private static int mask(int nBits) {
+        return (1 << nBits) - 1;
+    }
+
+    private double loadFactor() {
+        return this.size / ((double) bucketsNum());
+    }
+
+    private int bucketsNum() {
+        return (1 << (this.hashBits - 1)) + this.splitIndex;
+    }
+
+    private static class Segment<V> {
+
+        // index of the first entry of each bucket's chain
+        final int[] heads = new int[SEGMENT_SIZE];
+
+        long[] keys = new long[INITIAL_SEGMENT_CAPACITY];
+        Object[] values = new Object[INITIAL_SEGMENT_CAPACITY];
+        int[] next = new int[INITIAL_SEGMENT_CAPACITY];
+
+        // number of slots ever used, slots above this mark have never been allocated
+        int used;
+        int freeHead = NO_ENTRY;
+
+        Segment() {
+            Arrays.fill(this.heads, NO_ENTRY);
+        }
+
+        int find(int bucketIndex, long key) {
+            for (int entry = this.heads[bucketIndex]; entry != NO_ENTRY; entry = this.next[entry]) {
+                if (this.keys[entry] == key) {
+                    return entry;
+                }
+            }
+
+            return NO_ENTRY;
+        }
+
+        void insert(int bucketIndex, long key, Object value) {
+            int entry = allocate();
+
+            this.keys[entry] = key;
+            this.values[entry] = value;
+
+            link(bucketIndex, entry);
+        }
+
+        void link(int bucketIndex, int entry) {
+            this.next[entry] = this.heads[bucketIndex];
+            this.heads[bucketIndex] = entry;
+        }
+
+        void unlink(int bucketIndex, int prev, int entry) {
+            if (prev == NO_ENTRY) {
+                // head of the list
+                this.heads[bucketIndex] = this.next[entry];
+            } else {
+                this.next[prev] = this.next[entry];
+            }
+        }
+
+        void release(int entry) {
+            // don't hold a reference to the value in the free slot
+            this.values[entry] = null;
+
+            this.next[entry] = this.freeHead;
+            this.freeHead = entry;
+        }
+
+        private int allocate() {
+            if (this.freeHead != NO_ENTRY) {
+                int entry = this.freeHead;
+                this.freeHead = this.next[entry];
+
+                return entry;
+            }
+
+            if (this.used == this.keys.length) {
+                int newCapacity = this.keys.length << 1;
+
+                this.keys = Arrays.copyOf(this.keys, newCapacity);
+                this.values = Arrays.copyOf(this.values, newCapacity);
+                this.next = Arrays.copyOf(this.next, newCapacity);
+            }
+
+            return this.used++;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.test.map;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -38,6 +40,50 @@ public class MapTest {
         System.out.println("Done");
     }
 
+    private static void concurrentMapTest() throws InterruptedException {
+        ConcurrentLinearHashMap<Integer, String> map = new ConcurrentLinearHashMap<>(16, 0.75);
+
+        int threadsNum = 8;
+        int keysPerThread = 100_000;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadsNum; t++) {
+            int from = t * keysPerThread;
+
+            threads.add(new Thread(() -> {
+                for (int i = from; i < from + keysPerThread; i++) {
+                    map.put(i, "v" + i);
+
+                    if (map.get(i) == null) {
+                        System.out.println(i + " is lost right after put");
+                    }
+
+                    // remove every tenth key right away
+                    if (i % 10 == 0) {
+                        map.remove(i);
+                    }
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < threadsNum * keysPerThread; i++) {
+            String value = map.get(i);
+
+            if (i % 10 == 0 && value != null) {
+                System.out.println(i + " is not removed");
+            } else if (i % 10 != 0 && !("v" + i).equals(value)) {
+                System.out.println(i + " is lost");
+            }
+        }
+
+        System.out.println("Done");
+    }
+
     private static void simpleMapTest() {
         LinearHashMap<Integer, String> map = new LinearHashMap<>();
         for (int i = 0; i < 5; i++) {
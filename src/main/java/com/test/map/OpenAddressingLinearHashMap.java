@@ -0,0 +1,328 @@
+package com.test.map;
+
+import java.util.Objects;
+
+/**
+ * {@link LinearHashMap} with open addressing within segments.
+ * <p>
+ * Bucket to segment mapping and growth are the same as in {@link LinearHashMap}, but instead of chains of nodes
+ * each segment holds all the entries of its {@code SEGMENT_SIZE} buckets in flat parallel arrays
+ * (keys, hashes, values) using linear probing. So a lookup touches a couple of adjacent array slots
+ * instead of chasing pointers across the heap.
+ * <p>
+ * Bucket boundaries within a segment don't matter for probing, so splitting a bucket is just moving
+ * its entries which belong to the buddy bucket into the buddy's segment (or doing nothing at all
+ * if both buckets are in the same segment). A segment grows its arrays on its own when it becomes too dense.
+ */
+@SuppressWarnings("unchecked")
+public class OpenAddressingLinearHashMap<K, V> implements SimpleMap<K, V> {
+
+    private static final int BUCKET_HASH_BITS = 4;
+    private static final int SEGMENT_SIZE = 1 << BUCKET_HASH_BITS;
+    private static final int MAX_SEGMENTS = 1 << 16;
+
+    // initial number of slots: room for SEGMENT_SIZE buckets filled up to the default load factor
+    private static final int INITIAL_SEGMENT_CAPACITY = SEGMENT_SIZE << 1;
+    private static final double MAX_SEGMENT_FILL = 0.7;
+
+    // marks an empty slot in the keys array, so null key is stored as NULL_KEY
+    private static final Object NULL_KEY = new Object();
+
+    private final Segment[] segments;
+    private int size;
+
+    private final double maxLoadFactor;
+
+    // Invariant: 0 <= splitIndex < 2 ^ (hashBits - 1) = 1 << (hashBits - 1)
+    private int hashBits;
+    private int splitIndex;
+
+    public OpenAddressingLinearHashMap() {
+        this(1 << 6, 0.75);
+    }
+
+    public OpenAddressingLinearHashMap(int initialSize, double maxLoadFactor) {
+        int bucketsNum = (initialSize == 1)
+                ? 1
+                : (Integer.highestOneBit(initialSize - 1) << 1);
+
+        int segmentsNum = bucketsNum >>> BUCKET_HASH_BITS;
+
+        this.segments = new Segment[Math.max(segmentsNum, MAX_SEGMENTS)];
+        this.maxLoadFactor = maxLoadFactor;
+        this.hashBits = Integer.SIZE - Integer.numberOfLeadingZeros(bucketsNum);
+        this.splitIndex = 0;
+    }
+
+    @Override
+    public V get(K key) {
+        int hash = hash(key);
+
+        Segment segment = this.segments[segmentIndex(indexFor(hash))];
+        if (segment == null) {
+            return null;
+        }
+
+        int slot = segment.find(maskNull(key), hash);
+        if (slot < 0) {
+            return null;
+        }
+
+        return (V) segment.values[slot];
+    }
+
+    @Override
+    public V put(K key, V value) {
+        int hash = hash(key);
+        Object maskedKey = maskNull(key);
+
+        Segment segment = getOrCreateSegment(segmentIndex(indexFor(hash)));
+
+        int slot = segment.find(maskedKey, hash);
+        if (slot >= 0) {
+            V oldValue = (V) segment.values[slot];
+            segment.values[slot] = value;
+
+            return oldValue;
+        }
+
+        // find() returns the empty slot where probing has stopped
+        segment.insertAt(~slot, maskedKey, hash, value);
+
+        this.size++;
+        split();
+
+        return null;
+    }
+
+    @Override
+    public V remove(K key) {
+        int hash = hash(key);
+
+        Segment segment = this.segments[segmentIndex(indexFor(hash))];
+        if (segment == null) {
+            return null;
+        }
+
+        int slot = segment.find(maskNull(key), hash);
+        if (slot < 0) {
+            return null;
+        }
+
+        V oldValue = (V) segment.values[slot];
+        segment.removeAt(slot);
+
+        this.size--;
+
+        return oldValue;
+    }
+
+    private void split() {
+        // Once all the segments are in use they just become denser
+        if (this.loadFactor() < this.maxLoadFactor || bucketsNum() == this.segments.length * SEGMENT_SIZE) {
+            return;
+        }
+
+        final Segment segment = this.segments[segmentIndex(this.splitIndex)];
+        final int edgeBit = 1 << (this.hashBits - 1);
+        final int buddyIndex = this.splitIndex + edgeBit; // splitIndex + 2 ^ (hashBits - 1)
+        final int buddySegmentIndex = segmentIndex(buddyIndex);
+
+        // Nothing to move if the split bucket is empty or both buckets reside in the same segment
+        if (segment != null && segment.size > 0 && buddySegmentIndex != segmentIndex(this.splitIndex)) {
+            final int buddyMask = mask(this.hashBits);
+
+            Segment buddySegment = null;
+
+            for (int slot = 0; slot < segment.keys.length; ) {
+                Object key = segment.keys[slot];
+
+                // Only the entries of the split bucket can have the buddy index as their full index
+                if (key == null || (segment.hashes[slot] & buddyMask) != buddyIndex) {
+                    slot++;
+                    continue;
+                }
+
+                if (buddySegment == null) {
+                    buddySegment = getOrCreateSegment(buddySegmentIndex);
+                }
+
+                int hash = segment.hashes[slot];
+                buddySegment.insertAt(~buddySegment.find(key, hash), key, hash, segment.values[slot]);
+
+                // Removal shifts the following entries back, so the same slot is checked again
+                segment.removeAt(slot);
+            }
+        }
+
+        incSplitIndex();
+    }
+
+    private void incSplitIndex() {
+        this.splitIndex++;
+
+        if (this.splitIndex == (1 << (this.hashBits - 1))) {
+            this.hashBits++;
+            this.splitIndex = 0;
+        }
+    }
+
+    private Segment getOrCreateSegment(int index) {
+        Segment segment = this.segments[index];
+
+        if (segment == null) {
+            this.segments[index] = segment = new Segment(INITIAL_SEGMENT_CAPACITY);
+        }
+
+        return segment;
+    }
+
+    private static Object maskNull(Object key) {
+        return key == null ? NULL_KEY : key;
+    }
+
+    private int hash(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int indexFor(int hash) {
+        int fullIndex = hash & mask(this.hashBits);
+        int halfIndex = fullIndex & ~(1 << (this.hashBits - 1));
+
+        return halfIndex < this.splitIndex ? fullIndex : halfIndex;
+    }
+
+    private int segmentIndex(int index) {
+        return index >>> BUCKET_HASH_BITS;
+    }
+
+    private static int mask(int nBits) {
+        return (1 << nBits) - 1;
+    }
+
+    private double loadFactor() {
+        return this.size / ((double) bucketsNum());
+    }
+
+    private int bucketsNum() {
+        return (1 << (this.hashBits - 1)) + this.splitIndex;
+    }
+
+    private static class Segment {
+
+        Object[] keys;
+        int[] hashes;
+        Object[] values;
+
+        int size;
+
+        // number of the high bits of the scrambled hash used as the home slot, capacity = 2 ^ capacityBits
+        int capacityBits;
+
+        Segment(int capacity) {
+            this.keys = new Object[capacity];
+            this.hashes = new int[capacity];
+            this.values = new Object[capacity];
+            this.capacityBits = Integer.numberOfTrailingZeros(capacity);
+        }
+
+        /**
+         * @return slot of the key if it's found or the bitwise complement of the empty slot where the probing stopped
+         */
+        int find(Object key, int hash) {
+            final Object[] keys = this.keys;
+            final int mask = keys.length - 1;
+
+            for (int slot = homeSlot(hash); ; slot = (slot + 1) & mask) {
+                Object slotKey = keys[slot];
+
+                if (slotKey == null) {
+                    return ~slot;
+                }
+
+                if (this.hashes[slot] == hash && Objects.equals(slotKey, key)) {
+                    return slot;
+                }
+            }
+        }
+
+        void insertAt(int slot, Object key, int hash, Object value) {
+            if (this.size + 1 > this.keys.length * MAX_SEGMENT_FILL) {
+                grow();
+                slot = ~find(key, hash);
+            }
+
+            this.keys[slot] = key;
+            this.hashes[slot] = hash;
+            this.values[slot] = value;
+            this.size++;
+        }
+
+        /**
+         * Backward shift deletion: the entries following the removed one within the same cluster are moved back
+         * if their home slot allows it, so no tombstones are needed.
+         */
+        void removeAt(int slot) {
+            final Object[] keys = this.keys;
+            final int mask = keys.length - 1;
+
+            int hole = slot;
+            for (int next = (hole + 1) & mask; keys[next] != null; next = (next + 1) & mask) {
+                int home = homeSlot(this.hashes[next]);
+
+                // the entry can be moved into the hole only if the hole lies cyclically between its home slot and itself
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    keys[hole] = keys[next];
+                    this.hashes[hole] = this.hashes[next];
+                    this.values[hole] = this.values[next];
+
+                    hole = next;
+                }
+            }
+
+            keys[hole] = null;
+            this.values[hole] = null;
+            this.size--;
+        }
+
+        private void grow() {
+            Object[] oldKeys = this.keys;
+            int[] oldHashes = this.hashes;
+            Object[] oldValues = this.values;
+
+            int capacity = oldKeys.length << 1;
+
+            this.keys = new Object[capacity];
+            this.hashes = new int[capacity];
+            this.values = new Object[capacity];
+            this.capacityBits++;
+
+            final int mask = capacity - 1;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null) {
+                    continue;
+                }
+
+                int slot = homeSlot(oldHashes[i]);
+                while (this.keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+
+                this.keys[slot] = oldKeys[i];
+                this.hashes[slot] = oldHashes[i];
+                this.values[slot] = oldValues[i];
+            }
+        }
+
+        private int homeSlot(int hash) {
+            // All the entries of a segment share their low bits, so the home slot is taken from the high bits
+            // of the scrambled hash instead
+            return (hash * 0x9E3779B9) >>> (Integer.SIZE - this.capacityBits);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.test.map.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static com.test.map.disk.Utils.assertState;
+
+/**
+ * {@link Storage} on top of an {@link AsynchronousFileChannel}. Synchronous accesses wait for their I/O to complete,
+ * while {@link #readAsync} never blocks: at most {@code maxOutstandingReads} reads are submitted to the channel at once,
+ * the rest are queued and submitted as the previous ones complete, so the queue depth of the device stays bounded
+ * regardless of the number of lookups in flight.
+ * <p>
+ * Futures returned by {@link #readAsync} are completed in the completion threads of the channel.
+ */
+public class AsyncChannelStorage implements Storage {
+
+    public static final int DEFAULT_MAX_OUTSTANDING_READS = 64;
+
+    private final AsynchronousFileChannel channel;
+    private final int maxOutstandingReads;
+
+    // reads which are waiting for a slot, the queue guards the counter as well
+    private final Queue<PendingRead> pendingReads = new ArrayDeque<>();
+    private int outstandingReads;
+
+    private final ReadHandler readHandler = new ReadHandler();
+
+    public AsyncChannelStorage(AsynchronousFileChannel channel) {
+        this(channel, DEFAULT_MAX_OUTSTANDING_READS);
+    }
+
+    public AsyncChannelStorage(AsynchronousFileChannel channel, int maxOutstandingReads) {
+        assertState(maxOutstandingReads > 0, "At least one outstanding read has to be allowed");
+
+        this.channel = channel;
+        this.maxOutstandingReads = maxOutstandingReads;
+    }
+
+    public static AsyncChannelStorage open(Path path) throws IOException {
+        return open(path, DEFAULT_MAX_OUTSTANDING_READS);
+    }
+
+    public static AsyncChannelStorage open(Path path, int maxOutstandingReads) throws IOException {
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(path,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+        return new AsyncChannelStorage(channel, maxOutstandingReads);
+    }
+
+    @Override
+    public byte[] read(long offset, int length) throws IOException {
+        byte[] result = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(result);
+
+        while (buffer.hasRemaining() && await(this.channel.read(buffer, offset + buffer.position())) != -1) ;
+
+        assertState(!buffer.hasRemaining(), "Can't read required number of bytes from the storage");
+
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readAsync(long offset, int length) {
+        PendingRead read = new PendingRead(offset, length);
+
+        synchronized (this.pendingReads) {
+            if (this.outstandingReads == this.maxOutstandingReads) {
+                this.pendingReads.add(read);
+                return read.result;
+            }
+
+            this.outstandingReads++;
+        }
+
+        submit(read);
+
+        return read.result;
+    }
+
+    @Override
+    public void write(long offset, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        while (buffer.hasRemaining()) {
+            await(this.channel.write(buffer, offset + buffer.position()));
+        }
+    }
+
+    @Override
+    public long size() throws IOException {
+        return this.channel.size();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        this.channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private void submit(PendingRead read) {
+        try {
+            this.channel.read(read.buffer, read.offset, read, this.readHandler);
+        } catch (RuntimeException e) {
+            complete(read, e);
+        }
+    }
+
+    /**
+     * Passes the slot of the completed read to the next queued one (if any) and only then completes the read,
+     * so the continuations of the read are able to submit new reads right away.
+     */
+    private void complete(PendingRead read, Throwable error) {
+        PendingRead next;
+
+        synchronized (this.pendingReads) {
+            next = this.pendingReads.poll();
+
+            if (next == null) {
+                this.outstandingReads--;
+            }
+        }
+
+        if (next != null) {
+            submit(next);
+        }
+
+        if (error != null) {
+            read.result.completeExceptionally(error);
+        } else {
+            read.result.complete(read.buffer.array());
+        }
+    }
+
+    private static int await(Future<Integer> io) throws IOException {
+        try {
+            return io.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for I/O", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private class ReadHandler implements CompletionHandler<Integer, PendingRead> {
+
+        @Override
+        public void completed(Integer bytesRead, PendingRead read) {
+            if (bytesRead == -1) {
+                complete(read, new IllegalStateException("Can't read required number of bytes from the storage"));
+            } else if (read.buffer.hasRemaining()) {
+                // the read has been cut short, the rest is requested in the same slot
+                try {
+                    AsyncChannelStorage.this.channel.read(read.buffer, read.offset + read.buffer.position(), read, this);
+                } catch (RuntimeException e) {
+                    complete(read, e);
+                }
+            } else {
+                complete(read, null);
+            }
+        }
+
+        @Override
+        public void failed(Throwable error, PendingRead read) {
+            complete(read, error);
+        }
+    }
+
+    private static class PendingRead {
+
+        final long offset;
+        final ByteBuffer buffer;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        PendingRead(long offset, int length) {
+            this.offset = offset;
+            this.buffer = ByteBuffer.wrap(new byte[length]);
+        }
+    }
+}
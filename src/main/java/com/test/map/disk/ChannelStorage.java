@@ -0,0 +1,46 @@
+package com.test.map.disk;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * {@link Storage} which performs a positioned read or write on the channel for each access.
+ * A {@link FileChannel} is accessed with the positional I/O, so threads sharing the storage don't wait for each other,
+ * any other channel is locked for each access.
+ */
+public class ChannelStorage implements Storage {
+
+    private final SeekableByteChannel channel;
+
+    public ChannelStorage(SeekableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public byte[] read(long offset, int length) throws IOException {
+        return Utils.read(this.channel, offset, length);
+    }
+
+    @Override
+    public void write(long offset, byte[] data) throws IOException {
+        Utils.write(this.channel, offset, data);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return this.channel.size();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        if (this.channel instanceof FileChannel) {
+            ((FileChannel) this.channel).force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
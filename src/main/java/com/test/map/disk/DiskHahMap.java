@@ -2,76 +2,204 @@ package com.test.map.disk;
 
 import lombok.AllArgsConstructor;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
 
 import static com.test.map.disk.Utils.assertState;
 
 /**
  * Optimizations:
  * <ul>
- * <li>Sort items within each page by their keys</li>
- * <li>Compaction during page split</li>
  * <li>Replace bucket page with the first overflow page if it becomes free upon item deletion</li>
  * <li>Hold calculated number of allocated overflow pages.</li>
  * </ul>
  * <p>
- * Things to think about:
- * <ul>
- * <li>Definition of {@code load factor}</li>
- * </ul>
+ * {@code Load factor} is the ratio of the total size of the items to the capacity of the bucket pages,
+ * so with the default value an average bucket fits into a single page regardless of the items sizes.
+ * <p>
+ * A map created with a log storage records all the modifications in the {@link WriteAheadLog}: each operation
+ * is a transaction which is either entirely recovered upon the next opening of the map or lost, so the data
+ * and the FSM never disagree with each other. Without the log the map is consistent only after {@link #flush()}.
+ * <p>
+ * The map is thread-safe. Each bucket chain is protected by a reader/writer latch, so lookups run in parallel with each
+ * other and with modifications of other buckets. Metadata is copy-on-write: a published {@link Metadata} object is never
+ * modified, so readers use a snapshot of it without any locking. Splits, commits and batches hold the structure lock
+ * exclusively, single key modifications hold it shared, lookups don't take it at all.
  */
-public class DiskHahMap {
+public class DiskHahMap implements Closeable {
 
     private static final int HASH_LENGTH = 32;
-    private static final int PAGE_SIZE = 256;
 
-    private final SeekableByteChannel dataChannel;
+    // a bit of FSM covers a whole page of data, so FSM file is much smaller
+    private static final int FSM_CHUNK_SIZE = 1024 * 1024;
+
+    // latches are striped, so buckets whose indexes differ by a multiple of this number share a latch
+    private static final int LATCH_STRIPES = 1024;
+
+    private final Storage dataStorage;
     private final FreeSpaceMap fsm;
+    // null if the map isn't logged
+    private final WriteAheadLog wal;
+    private final PageCache pageCache;
+
+    private final int pageSize;
+    private final double maxLoadFactor;
+    private final Executor asyncExecutor;
+
+    // modified only under the metadata lock by replacing it with a modified copy
+    private volatile Metadata metadata;
+    private volatile boolean isMetadataDirty = false;
+    private final Object metadataLock = new Object();
 
-    private Metadata metadata;
-    private boolean isMetadataDirty = false;
+    private final ReadWriteLock structureLock = new ReentrantReadWriteLock();
+    // a stamped lock isn't owned by a thread, so an asynchronous lookup releases its latch in the thread completing its I/O
+    private final StampedLock[] latches = createLatches();
 
     public DiskHahMap(SeekableByteChannel dataChannel, SeekableByteChannel fsmChannel, int initialSize) throws IOException {
-        this.dataChannel = dataChannel;
-        this.fsm = new FreeSpaceMap(fsmChannel, true);
+        this(dataChannel, fsmChannel, initialSize, DiskMapOptions.defaults());
+    }
+
+    public DiskHahMap(SeekableByteChannel dataChannel, SeekableByteChannel fsmChannel, int initialSize,
+                      DiskMapOptions options) throws IOException {
+        this(new ChannelStorage(dataChannel), new ChannelStorage(fsmChannel), initialSize, options);
+    }
+
+    public DiskHahMap(Storage dataStorage, Storage fsmStorage, int initialSize, DiskMapOptions options) throws IOException {
+        this(dataStorage, fsmStorage, null, initialSize, options);
+    }
+
+    /**
+     * Creates a map whose modifications are recorded in the write-ahead log. Previous content of the log (if any) is discarded.
+     */
+    public DiskHahMap(Storage dataStorage, Storage fsmStorage, Storage logStorage, int initialSize,
+                      DiskMapOptions options) throws IOException {
+        this.wal = createLog(logStorage, options);
+        this.dataStorage = logged(dataStorage);
+        this.fsm = new FreeSpaceMap(logged(fsmStorage), true, options.isFsmCached());
+        this.maxLoadFactor = options.getMaxLoadFactor();
+        this.asyncExecutor = options.getAsyncExecutor();
 
-        this.metadata = Metadata.forInitial(initialSize);
+        this.metadata = Metadata.forInitial(initialSize, options.getPageSize());
+        this.pageSize = this.metadata.pageSize;
 
         assertEmpty();
 
+        this.pageCache = createPageCache(this.dataStorage, this.pageSize, options);
+
         initBuckets();
         writeMetadata();
+
+        if (this.wal != null) {
+            // the initial state goes directly to the storages, so the map can be opened even if nothing else is committed
+            commit();
+            this.wal.checkpoint();
+        }
     }
 
     public DiskHahMap(SeekableByteChannel dataChannel, SeekableByteChannel fsmChannel) throws IOException {
-        this.dataChannel = dataChannel;
-        this.fsm = new FreeSpaceMap(fsmChannel);
+        this(dataChannel, fsmChannel, DiskMapOptions.defaults());
+    }
+
+    public DiskHahMap(SeekableByteChannel dataChannel, SeekableByteChannel fsmChannel, DiskMapOptions options) throws IOException {
+        this(new ChannelStorage(dataChannel), new ChannelStorage(fsmChannel), options);
+    }
+
+    public DiskHahMap(Storage dataStorage, Storage fsmStorage, DiskMapOptions options) throws IOException {
+        this(dataStorage, fsmStorage, null, options);
+    }
+
+    /**
+     * Opens a map whose modifications are recorded in the write-ahead log, committed operations are recovered from the log.
+     */
+    public DiskHahMap(Storage dataStorage, Storage fsmStorage, Storage logStorage, DiskMapOptions options) throws IOException {
+        this.wal = createLog(logStorage, options);
+        this.dataStorage = logged(dataStorage);
+
+        Storage loggedFsmStorage = logged(fsmStorage);
 
+        // both storages have to be attached to the log before the recovery
+        if (this.wal != null) {
+            this.wal.recover();
+        }
+
+        this.fsm = new FreeSpaceMap(loggedFsmStorage, false, options.isFsmCached());
+        this.maxLoadFactor = options.getMaxLoadFactor();
+        this.asyncExecutor = options.getAsyncExecutor();
+
+        // page size of an existing map is defined by its metadata, not by the options
         checkFileSizeAndInit();
+        this.pageSize = this.metadata.pageSize;
+
+        this.pageCache = createPageCache(this.dataStorage, this.pageSize, options);
+    }
+
+    private static WriteAheadLog createLog(Storage logStorage, DiskMapOptions options) throws IOException {
+        return logStorage == null ? null
+                : new WriteAheadLog(logStorage, options.getGroupCommitSize(), options.getCheckpointSize());
+    }
+
+    private Storage logged(Storage storage) throws IOException {
+        return this.wal == null ? storage : this.wal.attach(storage);
+    }
+
+    private static PageCache createPageCache(Storage dataStorage, int pageSize, DiskMapOptions options) throws IOException {
+        return new PageCache(dataStorage, Metadata.SIZE, pageSize, options.getCachePages(), options.getEvictionPolicy());
+    }
+
+    private static StampedLock[] createLatches() {
+        StampedLock[] latches = new StampedLock[LATCH_STRIPES];
+
+        for (int i = 0; i < latches.length; i++) {
+            latches[i] = new StampedLock();
+        }
+
+        return latches;
     }
 
     private void assertEmpty() throws IOException {
-        assertState(this.dataChannel.size() == 0, "Data channel is not empty");
+        assertState(this.dataStorage.size() == 0, "Data storage is not empty");
     }
 
     private void checkFileSizeAndInit() throws IOException {
         // File should contain at least metadata and all the pages determined by the metadata's fields
 
-        long dataSize = this.dataChannel.size();
-        assertState(dataSize >= Metadata.SIZE, "Data channel size is less than metadata size: " + dataSize);
+        long dataSize = this.dataStorage.size();
+        assertState(dataSize >= Metadata.SIZE, "Data storage size is less than metadata size: " + dataSize);
 
         readMetadata();
 
-        long exactExpectedSize = Metadata.SIZE + this.metadata.expectedNumberOfPages() * PAGE_SIZE;
-        assertState(exactExpectedSize == dataSize, "Invalid data channel size: " + dataSize);
+        int pageSize = this.metadata.pageSize;
+        assertState(DiskMapOptions.isValidPageSize(pageSize), "Invalid page size: " + pageSize);
+
+        long exactExpectedSize = Metadata.SIZE + (long) this.metadata.expectedNumberOfPages() * pageSize;
+        assertState(exactExpectedSize == dataSize, "Invalid data storage size: " + dataSize);
     }
 
     private void initBuckets() throws IOException {
-        Page emptyPage = Page.empty();
+        Page emptyPage = emptyPage();
 
         for (int i = 0; i < this.metadata.bucketsNum(); i++) {
             writePage(i, emptyPage);
@@ -80,6 +208,57 @@ public class DiskHahMap {
 
     /* -------------------- Metadata management methods -------------------- */
 
+    /**
+     * Publishes a modified copy of the metadata, so the readers never see it partially updated.
+     */
+    private void updateMetadata(Consumer<Metadata> update) {
+        synchronized (this.metadataLock) {
+            Metadata metadata = this.metadata.copy();
+            update.accept(metadata);
+
+            this.metadata = metadata;
+        }
+    }
+
+    /**
+     * Splits a bucket and commits a single key modification. The exclusive structure lock is taken only
+     * if there is something to do, so unlogged modifications of different buckets don't wait for each other.
+     */
+    private void completeModification() throws IOException {
+        if (this.wal == null && !this.isMetadataDirty && loadFactor() < this.maxLoadFactor) {
+            return;
+        }
+
+        Lock structureLock = this.structureLock.writeLock();
+        structureLock.lock();
+
+        try {
+            split();
+            commit();
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * Completes a modifying operation. A logged map writes all the pages modified by the operation and the metadata
+     * to the log and commits them, an unlogged one writes the metadata only if the layout of the pages has changed.
+     */
+    private void commit() throws IOException {
+        if (this.wal == null) {
+            syncMetadataIfDirty();
+            return;
+        }
+
+        // it's just an append to the log, pages are written to their places only upon a checkpoint
+        this.pageCache.flush();
+        writeMetadata();
+        this.isMetadataDirty = false;
+        this.fsm.flush();
+
+        this.wal.commit();
+    }
+
     private void syncMetadataIfDirty() throws IOException {
         if (this.isMetadataDirty) {
             writeMetadata();
@@ -88,12 +267,72 @@ public class DiskHahMap {
     }
 
     private void readMetadata() throws IOException {
-        byte[] metadataBytes = Utils.read(this.dataChannel, 0, Metadata.SIZE);
+        byte[] metadataBytes = this.dataStorage.read(0, Metadata.SIZE);
         this.metadata = new Metadata(metadataBytes);
     }
 
     private void writeMetadata() throws IOException {
-        Utils.write(this.dataChannel, 0, this.metadata.getBytes());
+        this.dataStorage.write(0, this.metadata.getBytes());
+    }
+
+    /* -------------------- Cache management -------------------- */
+
+    /**
+     * Writes all the pages modified since the last flush to the data and FSM storages. Pages are written back lazily,
+     * so an unlogged map has to be flushed before its storage can be reopened as a map again.
+     * A logged map syncs the log instead, so all the completed operations become durable.
+     */
+    public void flush() throws IOException {
+        Lock structureLock = this.structureLock.writeLock();
+        structureLock.lock();
+
+        try {
+            if (this.wal != null) {
+                this.wal.sync();
+                return;
+            }
+
+            this.pageCache.flush();
+            writeMetadata();
+            this.fsm.flush();
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the map and closes all the storages. The log of a logged map is checkpointed beforehand,
+     * so the data and FSM storages are up to date.
+     */
+    @Override
+    public void close() throws IOException {
+        Lock structureLock = this.structureLock.writeLock();
+        structureLock.lock();
+
+        try {
+            flush();
+
+            if (this.wal != null) {
+                this.wal.checkpoint();
+            }
+
+            this.dataStorage.close();
+            this.fsm.close();
+
+            if (this.wal != null) {
+                this.wal.close();
+            }
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    public long size() {
+        return this.metadata.size;
+    }
+
+    public PageCacheStats cacheStats() {
+        return this.pageCache.stats();
     }
 
     /* -------------------- Testing API Methods -------------------- */
@@ -126,24 +365,163 @@ public class DiskHahMap {
         checkKeySize(key);
 
         final int hash = hash(key);
-        final int bucketPageNum = bucketPageNumber(bucketIndex(hash));
+        Lock latch = latchBucket(hash, false);
+
+        try {
+            Item item = findItem(key, hash);
+
+            if (item == null) {
+                return null;
+            }
+
+            return item.blob ? readBlob(item) : item.value;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Streaming version of the {@link #get(byte[])}: a large value is read page by page as the stream is consumed,
+     * so it's never materialized as a single array. The stream becomes invalid once the value is modified or removed.
+     *
+     * @return stream of the value bytes or {@code null} if there is no such key in the map
+     */
+    public InputStream getAsStream(byte[] key) throws IOException {
+        checkKeyNotNull(key);
+        checkKeySize(key);
+
+        final int hash = hash(key);
+        Lock latch = latchBucket(hash, false);
 
-        if (bucketPageNum >= this.metadata.bucketsNum()) {
+        Item item;
+        try {
+            item = findItem(key, hash);
+        } finally {
+            latch.unlock();
+        }
+
+        if (item == null) {
             return null;
         }
 
-        int pageNum = bucketPageNum;
+        return item.blob ? new BlobInputStream(item) : new ByteArrayInputStream(item.value);
+    }
 
-        do {
-            Page page = readPage(pageNum);
+    /**
+     * Looks up all the keys at once: chains of all the buckets are walked level by level, so each page is read once
+     * for all the keys it may contain, and the pages of each level are read in the order of their offsets, adjacent ones
+     * with a single read. Buckets of all the keys are latched for the duration of the lookup, so the values are
+     * a consistent snapshot of the map.
+     *
+     * @return values in the order of the keys, {@code null} for the keys which aren't in the map
+     */
+    public List<byte[]> getAll(Collection<byte[]> keys) throws IOException {
+        final byte[][] keyArray = keys.toArray(new byte[0][]);
+        final int[] hashes = new int[keyArray.length];
+
+        for (int i = 0; i < keyArray.length; i++) {
+            checkKeyNotNull(keyArray[i]);
+            checkKeySize(keyArray[i]);
+
+            hashes[i] = hash(keyArray[i]);
+        }
 
-            for (Item item : page.items) {
-                if (item.keyEqualsTo(key, hash)) {
-                    return item.value;
+        final Item[] items = new Item[keyArray.length];
+        final byte[][] values = new byte[keyArray.length][];
+
+        List<Lock> latches = latchBuckets(hashes);
+
+        try {
+            // next page of each chain which is still searched -> indexes of the keys not found yet,
+            // the pages are different for all the chains and keys of the same bucket share the reads
+            Map<Integer, List<Integer>> level = new TreeMap<>();
+
+            for (int i = 0; i < keyArray.length; i++) {
+                level.computeIfAbsent(bucketPageNumber(bucketIndex(hashes[i])), pageNum -> new ArrayList<>()).add(i);
+            }
+
+            final int prefetchSize = Math.max(1, this.pageCache.capacity() / 2);
+
+            while (!level.isEmpty()) {
+                Map<Integer, List<Integer>> nextLevel = new TreeMap<>();
+                List<Integer> pageNums = new ArrayList<>(level.keySet());
+
+                for (int from = 0; from < pageNums.size(); from += prefetchSize) {
+                    List<Integer> chunk = pageNums.subList(from, Math.min(from + prefetchSize, pageNums.size()));
+                    this.pageCache.prefetch(chunk);
+
+                    for (int pageNum : chunk) {
+                        searchPage(pageNum, level.get(pageNum), keyArray, hashes, items, nextLevel);
+                    }
                 }
+
+                level = nextLevel;
             }
 
-            pageNum = page.nextPageNumber;
+            for (int i = 0; i < items.length; i++) {
+                Item item = items[i];
+
+                if (item != null) {
+                    values[i] = item.blob ? readBlob(item) : item.value;
+                }
+            }
+        } finally {
+            for (Lock latch : latches) {
+                latch.unlock();
+            }
+        }
+
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Searches the page for the given keys, the keys which haven't been found are passed to the next page of the chain.
+     */
+    private void searchPage(int pageNum, List<Integer> lookups, byte[][] keys, int[] hashes, Item[] items,
+                            Map<Integer, List<Integer>> nextLevel) throws IOException {
+        List<Integer> notFound = new ArrayList<>();
+        int nextPageNum;
+
+        PageCache.Frame frame = this.pageCache.pin(pageNum);
+
+        try {
+            for (int i : lookups) {
+                int slot = Page.findSlot(frame.data, keys[i], hashes[i]);
+
+                if (slot != Page.NOT_FOUND) {
+                    items[i] = Page.itemAt(frame.data, slot);
+                } else {
+                    notFound.add(i);
+                }
+            }
+
+            nextPageNum = Page.nextPageNumber(frame.data);
+        } finally {
+            this.pageCache.unpin(frame, false);
+        }
+
+        if (!notFound.isEmpty() && nextPageNum != Page.NO_PAGE) {
+            nextLevel.put(nextPageNum, notFound);
+        }
+    }
+
+    private Item findItem(byte[] key, int hash) throws IOException {
+        int pageNum = bucketPageNumber(bucketIndex(hash));
+
+        do {
+            PageCache.Frame frame = this.pageCache.pin(pageNum);
+
+            try {
+                int slot = Page.findSlot(frame.data, key, hash);
+
+                if (slot != Page.NOT_FOUND) {
+                    return Page.itemAt(frame.data, slot);
+                }
+
+                pageNum = Page.nextPageNumber(frame.data);
+            } finally {
+                this.pageCache.unpin(frame, false);
+            }
         } while (pageNum != Page.NO_PAGE);
 
         return null;
@@ -152,17 +530,39 @@ public class DiskHahMap {
     public void put(byte[] key, byte[] value) throws IOException {
         checkKeyNotNull(key);
         checkValueNotNull(value);
+        checkKeySize(key);
 
         int hash = hash(key);
-        Item newItem = new Item(hash, key, value);
-        int itemSize = newItem.size();
+        Item newItem = new Item(hash, key, value, false);
 
-        assertState(itemSize <= Item.MAX_SIZE, "key-value pair is too large to fit into a single page");
+        Lock structureLock = this.structureLock.readLock();
+        structureLock.lock();
 
-        Metadata metadata = this.metadata;
+        try {
+            if (newItem.size() > maxInlineItemSize()) {
+                newItem = Item.blobPointer(hash, key, writeBlob(value), value.length);
+            }
 
-        int bucketIndex = bucketIndex(hash);
-        int pageNum = bucketPageNumber(bucketIndex);
+            Lock latch = latchBucket(hash, true);
+
+            try {
+                putItem(newItem);
+            } finally {
+                latch.unlock();
+            }
+        } finally {
+            structureLock.unlock();
+        }
+
+        completeModification();
+    }
+
+    private void putItem(Item newItem) throws IOException {
+        final int hash = newItem.hash;
+        final byte[] key = newItem.key;
+        final int itemSize = newItem.size();
+
+        int pageNum = bucketPageNumber(bucketIndex(hash));
 
         /*
          *  Possible cases:
@@ -199,6 +599,12 @@ public class DiskHahMap {
                 Item item = items[i];
 
                 if (item.keyEqualsTo(key, hash)) {
+                    updateMetadata(metadata -> metadata.itemReplaced(item, newItem));
+
+                    if (item.blob) {
+                        freeBlob(item);
+                    }
+
                     if (page.freeSpace + item.size() >= itemSize) {
                         // Case 2.1
 
@@ -233,6 +639,10 @@ public class DiskHahMap {
 
         // Case 1 or 2.2 (in case of lack of free space in the original page)
 
+        if (!freePageLookingMode) {
+            updateMetadata(metadata -> metadata.itemAdded(newItem));
+        }
+
         if (freePage != null) {
             freePage.addItem(newItem);
             writePage(freePageNum, freePage);
@@ -240,11 +650,10 @@ public class DiskHahMap {
             return;
         }
 
-        int newFsmPageNum = getOverflowPage();
-        int newPageNum = fsmPageNumToOverflowPageNum(newFsmPageNum);
+        int newPageNum = fsmPageNumToOverflowPageNum(allocateOverflowPages(1));
 
         // Create a new page and add a new item into it
-        Page newPage = Page.empty();
+        Page newPage = emptyPage();
         newPage.addItem(newItem);
 
         // Establish a link between the last page in the chain and the new one
@@ -253,131 +662,212 @@ public class DiskHahMap {
         // And finally, IO ops
         writePage(prevPageNum, prevPage);
         writePage(newPageNum, newPage);
+    }
 
-        syncMetadataIfDirty();
-
-        // TODO: could we combine this call with the findFreePage call above into a single takeFreePage call?
-        this.fsm.take(newFsmPageNum);
+    /**
+     * Takes the given number of adjacent free pages from the FSM extending the overflow region if needed.
+     *
+     * @return FSM number of the first page
+     */
+    private int allocateOverflowPages(int count) throws IOException {
+        // concurrent allocations must extend the overflow region in the order of their pages
+        synchronized (this.metadataLock) {
+            int firstFsmPageNum = this.fsm.allocate(count);
+
+            // the FSM never leaves a gap after the last overflow page, so the pages beyond it are just appended
+            if (firstFsmPageNum + count > this.metadata.overflowPagesNum()) {
+                updateMetadata(metadata -> {
+                    while (firstFsmPageNum + count > metadata.overflowPagesNum()) {
+                        metadata.incOverflowPages();
+                    }
+                });
 
-        //split();
-    }
+                this.isMetadataDirty = true;
+            }
 
-    private int getOverflowPage() throws IOException {
-        int newFsmPageNum = this.fsm.findFreePage();
-        if (newFsmPageNum == this.metadata.overflowPagesNum()) {
-            // Update map's metadata increasing overflow pages counter
-            this.metadata.incOverflowPages();
-            // Mark metadata as dirty
-            this.isMetadataDirty = true;
+            return firstFsmPageNum;
         }
-
-        return newFsmPageNum;
     }
 
-    private void split() throws IOException {
-        /*
-        TODO: enable this check
-        if (this.loadFactor() < this.maxLoadFactor) {
-            return;
+    /**
+     * Splits the bucket pointed by the split index if the load factor is exceeded: items whose next hash bit is set
+     * are moved to the buddy bucket and both chains are compacted, overflow pages which aren't needed anymore
+     * are returned to the FSM. Has to be called under the exclusive structure lock.
+     *
+     * @return false if the load factor isn't exceeded or the bucket can't be split
+     */
+    private boolean split() throws IOException {
+        final Metadata metadata = this.metadata;
+
+        if (loadFactor() < this.maxLoadFactor || metadata.hashBits >= HASH_LENGTH) {
+            return false;
         }
-        */
 
-        final Metadata metadata = this.metadata;
-        final int hashBits = metadata.hashBits;
         final int splitIndex = metadata.splitIndex;
-        final int splitPageNum = bucketPageNumber(splitIndex);
-
-        final int edgeBit = 1 << (hashBits - 1);
+        final int edgeBit = 1 << (metadata.hashBits - 1);
         final int buddyIndex = splitIndex + edgeBit; // splitIndex + 2 ^ (hashBits - 1)
-        final int buddyBucketPageNum = bucketPageNumber(buddyIndex);
 
-        Page prevPage = null;
-        int prevPageNum = 0;
+        // lookups of both buckets wait until the items are distributed, then they find out that the bucket of their key
+        // has changed (if it has) from the new metadata
+        Lock splitLatch = this.latches[latchIndex(splitIndex)].asWriteLock();
+        Lock buddyLatch = this.latches[latchIndex(buddyIndex)].asWriteLock();
 
-        Page prevBuddyPage = null;
-        int prevBuddyPageNum = 0;
+        // latches aren't reentrant and both buckets may share one
+        boolean sharedLatch = splitLatch == buddyLatch;
 
-        Page buddyPage = Page.empty();
-        int buddyPageNum = buddyBucketPageNum;
+        splitLatch.lock();
+        if (!sharedLatch) {
+            buddyLatch.lock();
+        }
 
-        //TODO; Notes:
-        //TODO;     1) Empty bucket page should be written to the disk anyway. Overflow page shouldn't.
+        try {
+            splitBucket(splitIndex, buddyIndex, edgeBit);
+        } finally {
+            if (!sharedLatch) {
+                buddyLatch.unlock();
+            }
+            splitLatch.unlock();
+        }
 
-        int pageNum = splitPageNum;
-        do {
-            Page splitPage = readPage(pageNum);
+        return true;
+    }
+
+    private void splitBucket(int splitIndex, int buddyIndex, int edgeBit) throws IOException {
+        // Split index is incremented beforehand to make the new split point active at once,
+        // so all the overflow pages allocated below go after its buckets
+        updateMetadata(Metadata::incSplitIndex);
+        this.isMetadataDirty = true;
+
+        if (splitIndex == 0) {
+            reserveBuckets(edgeBit, edgeBit << 1);
+        }
 
-            for (int i = 0; i < splitPage.items.length; i++) {
-                Item item = splitPage.items[i];
+        // 1. Read the whole chain of the split bucket and distribute its items
+        List<Integer> splitChain = new ArrayList<>();
+        List<Item> splitItems = new ArrayList<>();
+        List<Item> buddyItems = new ArrayList<>();
 
+        int pageNum = bucketPageNumber(splitIndex);
+        do {
+            Page page = readPage(pageNum);
+
+            for (Item item : page.items) {
                 if ((item.hash & edgeBit) != 0) {
-                    // Transfer item into another bucket
+                    buddyItems.add(item);
+                } else {
+                    splitItems.add(item);
+                }
+            }
+
+            splitChain.add(pageNum);
+            pageNum = page.nextPageNumber;
+        } while (pageNum != Page.NO_PAGE);
 
-                    // 1. Remove the item from the split bucket
-                    splitPage.removeItem(i);
+        if (buddyItems.isEmpty()) {
+            // buddy bucket page has already been written empty
+            return;
+        }
 
-                    // 2. Add item to the buddy bucket
-                    if (buddyPage.freeSpace < item.size()) {
+        // 2. Rewrite the split bucket compacting its items, free pages are returned to the FSM before
+        //    the buddy chain is allocated, so they can be reused right away
+        List<Page> splitPages = pack(splitItems);
 
-                    }
+        for (int i = splitPages.size(); i < splitChain.size(); i++) {
+            this.fsm.free(overflowPageNumToFsmPageNum(splitChain.get(i)));
+        }
 
-                    buddyPage.addItem(item);
+        writeChain(splitChain.subList(0, splitPages.size()), splitPages);
 
-                    // 4. Adjust the loop index
-                    i--;
-                }
-            }
+        // 3. Write the buddy bucket
+        List<Page> buddyPages = pack(buddyItems);
+        List<Integer> buddyChain = new ArrayList<>();
+        buddyChain.add(bucketPageNumber(buddyIndex));
 
+        if (buddyPages.size() > 1) {
+            int firstFsmPageNum = allocateOverflowPages(buddyPages.size() - 1);
 
-            if (splitPage.isEmpty()) {
-                // TODO: free page if it is an overflow page
+            for (int i = 1; i < buddyPages.size(); i++) {
+                buddyChain.add(fsmPageNumToOverflowPageNum(firstFsmPageNum + i - 1));
             }
+        }
 
-            prevPage = splitPage;
-            prevPageNum = pageNum;
+        writeChain(buddyChain, buddyPages);
+    }
 
-            pageNum = splitPage.nextPageNumber;
-        } while (pageNum != Page.NO_PAGE);
+    /**
+     * Writes empty pages for all the buckets of a split point, the first of them is about to be used.
+     */
+    private void reserveBuckets(int fromIndex, int toIndex) throws IOException {
+        Page emptyPage = emptyPage();
 
+        for (int bucketIndex = fromIndex; bucketIndex < toIndex; bucketIndex++) {
+            writePage(bucketPageNumber(bucketIndex), emptyPage);
+        }
+    }
 
-        if (buddyPage.isEmpty()) {
+    /**
+     * Distributes the items among the minimal number of pages filling them in order. There is always at least one page.
+     */
+    private List<Page> pack(List<Item> items) {
+        List<Page> pages = new ArrayList<>();
+        Page page = emptyPage();
+        pages.add(page);
+
+        for (Item item : items) {
+            if (page.freeSpace < item.size()) {
+                page = emptyPage();
+                pages.add(page);
+            }
 
-        } else {
-            metadata.incOverflowPages();
+            page.addItem(item);
+        }
 
-            int buddyDiskPageNum = fsmPageNumToOverflowPageNum(buddyPageNum);
+        return pages;
+    }
 
-            // Write the prev. buddy page to the disk linking it to the last created page if the latter isn't empty.
-            if (prevBuddyPage != null) {
-                // link the last allocated page with the previous one
-                prevBuddyPage.nextPageNumber = buddyDiskPageNum;
-                writePage(prevBuddyPageNum, prevBuddyPage);
-            }
+    private void writeChain(List<Integer> pageNums, List<Page> pages) throws IOException {
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = pages.get(i);
+            page.nextPageNumber = (i + 1 < pages.size()) ? pageNums.get(i + 1) : Page.NO_PAGE;
 
-            this.fsm.take(buddyPageNum);
-            writePage(buddyDiskPageNum, buddyPage);
+            writePage(pageNums.get(i), page);
         }
+    }
 
-        // TODO: update split index and finally write updated metadata to disk
-        //writeMetadata();
+    private double loadFactor() {
+        final Metadata metadata = this.metadata;
 
-//        incSplitIndex();
+        return metadata.dataSize / ((double) metadata.bucketsNum() * maxItemSize());
     }
 
     public void remove(byte[] key) throws IOException {
         checkKeyNotNull(key);
         checkKeySize(key);
 
-        final int hash = hash(key);
-        final int bucketPageNum = bucketPageNumber(bucketIndex(hash));
+        Lock structureLock = this.structureLock.readLock();
+        structureLock.lock();
 
-        if (bucketPageNum >= this.metadata.bucketsNum()) {
-            return;
+        try {
+            Lock latch = latchBucket(hash(key), true);
+
+            try {
+                removeItem(key);
+            } finally {
+                latch.unlock();
+            }
+        } finally {
+            structureLock.unlock();
         }
 
+        completeModification();
+    }
+
+    private void removeItem(byte[] key) throws IOException {
+        final int hash = hash(key);
+
         Page prevPage = null;
         int prevPageNum = -1;
-        int pageNum = bucketPageNum;
+        int pageNum = bucketPageNumber(bucketIndex(hash));
 
         do {
             Page page = readPage(pageNum);
@@ -387,6 +877,11 @@ public class DiskHahMap {
 
                 if (item.keyEqualsTo(key, hash)) {
                     page.removeItem(i);
+                    updateMetadata(metadata -> metadata.itemRemoved(item));
+
+                    if (item.blob) {
+                        freeBlob(item);
+                    }
 
                     // Page isn't empty or it's a bucket page: just write it back to the channel.
                     if (!page.isEmpty() || prevPage == null) {
@@ -411,6 +906,454 @@ public class DiskHahMap {
         } while (pageNum != Page.NO_PAGE);
     }
 
+    /* -------------------- Batches -------------------- */
+
+    public void write(WriteBatch batch) throws IOException {
+        write(batch, false);
+    }
+
+    /**
+     * Applies all the operations of the batch grouping them by buckets: each bucket chain is read once,
+     * modified in memory and only its changed pages are written back, each of them once. Buckets are visited
+     * in the order of their pages and splits are postponed until the whole batch is applied.
+     * <p>
+     * A logged map commits the batch as a single transaction. The batch holds the structure lock exclusively,
+     * so the other modifications wait until it's applied.
+     *
+     * @param sync whether to force the modifications to the device afterwards
+     */
+    public void write(WriteBatch batch, boolean sync) throws IOException {
+        Lock structureLock = this.structureLock.writeLock();
+        structureLock.lock();
+
+        try {
+            applyBatch(batch, sync);
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    private void applyBatch(WriteBatch batch, boolean sync) throws IOException {
+        // items are grouped by bucket indexes which are ordered in the same way as bucket page numbers,
+        // an item with null value is a removal
+        Map<Integer, List<Item>> buckets = new TreeMap<>();
+
+        for (Map.Entry<ByteBuffer, byte[]> operation : batch.operations()) {
+            checkKeySize(operation.getKey().array());
+        }
+
+        for (Map.Entry<ByteBuffer, byte[]> operation : batch.operations()) {
+            byte[] key = operation.getKey().array();
+            byte[] value = operation.getValue();
+
+            int hash = hash(key);
+            Item item = new Item(hash, key, value, false);
+
+            if (value != null && item.size() > maxInlineItemSize()) {
+                item = Item.blobPointer(hash, key, writeBlob(value), value.length);
+            }
+
+            buckets.computeIfAbsent(bucketIndex(hash), index -> new ArrayList<>()).add(item);
+        }
+
+        for (Map.Entry<Integer, List<Item>> bucket : buckets.entrySet()) {
+            Lock latch = this.latches[latchIndex(bucket.getKey())].asWriteLock();
+            latch.lock();
+
+            try {
+                applyToBucket(bucket.getKey(), bucket.getValue());
+            } finally {
+                latch.unlock();
+            }
+        }
+
+        while (split()) {
+            // the load factor may have been exceeded several times over
+        }
+
+        commit();
+
+        if (sync) {
+            flush();
+
+            if (this.wal == null) {
+                this.dataStorage.sync();
+                this.fsm.sync();
+            }
+        }
+    }
+
+    private void applyToBucket(int bucketIndex, List<Item> items) throws IOException {
+        List<Integer> pageNums = new ArrayList<>();
+        List<Page> pages = new ArrayList<>();
+
+        int pageNum = bucketPageNumber(bucketIndex);
+        do {
+            Page page = readPage(pageNum);
+
+            pageNums.add(pageNum);
+            pages.add(page);
+
+            pageNum = page.nextPageNumber;
+        } while (pageNum != Page.NO_PAGE);
+
+        Set<Integer> changedPages = new HashSet<>();
+
+        for (Item newItem : items) {
+            // the current item (if any) is removed in any case, a new one is placed wherever it fits
+            removal:
+            for (int p = 0; p < pages.size(); p++) {
+                Page page = pages.get(p);
+
+                for (int i = 0; i < page.items.length; i++) {
+                    Item item = page.items[i];
+
+                    if (item.keyEqualsTo(newItem.key, newItem.hash)) {
+                        page.removeItem(i);
+                        updateMetadata(metadata -> metadata.itemRemoved(item));
+
+                        if (item.blob) {
+                            freeBlob(item);
+                        }
+
+                        changedPages.add(pageNums.get(p));
+                        break removal;
+                    }
+                }
+            }
+
+            if (newItem.value == null) {
+                continue;
+            }
+
+            updateMetadata(metadata -> metadata.itemAdded(newItem));
+
+            int freePage = 0;
+            while (freePage < pages.size() && pages.get(freePage).freeSpace < newItem.size()) {
+                freePage++;
+            }
+
+            if (freePage == pages.size()) {
+                int newPageNum = fsmPageNumToOverflowPageNum(allocateOverflowPages(1));
+
+                pages.get(freePage - 1).nextPageNumber = newPageNum;
+                changedPages.add(pageNums.get(freePage - 1));
+
+                pageNums.add(newPageNum);
+                pages.add(emptyPage());
+            }
+
+            pages.get(freePage).addItem(newItem);
+            changedPages.add(pageNums.get(freePage));
+        }
+
+        // overflow pages which became empty are unlinked from the chain and returned to the FSM
+        for (int p = pages.size() - 1; p > 0; p--) {
+            if (pages.get(p).isEmpty()) {
+                pages.get(p - 1).nextPageNumber = pages.get(p).nextPageNumber;
+                changedPages.add(pageNums.get(p - 1));
+
+                this.fsm.free(overflowPageNumToFsmPageNum(pageNums.get(p)));
+                changedPages.remove(pageNums.get(p));
+
+                pages.remove(p);
+                pageNums.remove(p);
+            }
+        }
+
+        for (int p = 0; p < pages.size(); p++) {
+            if (changedPages.contains(pageNums.get(p))) {
+                writePage(pageNums.get(p), pages.get(p));
+            }
+        }
+    }
+
+    /* -------------------- Asynchronous API -------------------- */
+
+    /**
+     * Non-blocking version of the {@link #get(byte[])}. Pages which aren't cached are read by {@link Storage#readAsync},
+     * so the lookup doesn't block only on top of an {@link AsyncChannelStorage}. Each next page of the chain is requested
+     * right from the completion of the previous read, all the pages of a large value are requested at once.
+     * <p>
+     * The bucket latch is held until the lookup completes. If the bucket is being modified at the moment,
+     * the lookup is performed by the async executor instead of waiting for the latch.
+     */
+    public CompletableFuture<byte[]> getAsync(byte[] key) {
+        checkKeyNotNull(key);
+        checkKeySize(key);
+
+        final int hash = hash(key);
+        final Lock latch = tryLatchBucket(hash);
+
+        if (latch == null) {
+            return supplyAsync(() -> get(key));
+        }
+
+        try {
+            return findItemAsync(key, hash, bucketPageNumber(bucketIndex(hash)))
+                    .thenCompose(item -> {
+                        if (item == null) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+
+                        return item.blob ? readBlobAsync(item) : CompletableFuture.completedFuture(item.value);
+                    })
+                    .whenComplete((value, error) -> latch.unlock());
+        } catch (RuntimeException e) {
+            latch.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Performs the {@link #put(byte[], byte[])} in the async executor, modifications of the pages are cheap
+     * until the page cache has to evict a dirty one or the map has to be committed.
+     */
+    public CompletableFuture<Void> putAsync(byte[] key, byte[] value) {
+        return supplyAsync(() -> {
+            put(key, value);
+            return null;
+        });
+    }
+
+    /**
+     * Performs the {@link #remove(byte[])} in the async executor.
+     */
+    public CompletableFuture<Void> removeAsync(byte[] key) {
+        return supplyAsync(() -> {
+            remove(key);
+            return null;
+        });
+    }
+
+    private CompletableFuture<Item> findItemAsync(byte[] key, int hash, int pageNum) {
+        return this.pageCache.readAsync(pageNum, true).thenCompose(page -> {
+            int slot = Page.findSlot(page, key, hash);
+
+            if (slot != Page.NOT_FOUND) {
+                return CompletableFuture.completedFuture(Page.itemAt(page, slot));
+            }
+
+            int nextPageNum = Page.nextPageNumber(page);
+
+            return nextPageNum == Page.NO_PAGE
+                    ? CompletableFuture.completedFuture(null)
+                    : findItemAsync(key, hash, nextPageNum);
+        });
+    }
+
+    /**
+     * Pages of a blob are allocated adjacently, so unless the blob spans several split points, all of them can be
+     * requested at once. It's checked by the links between the pages, otherwise the chain is followed page by page.
+     * Blob pages aren't cached, so a large value doesn't evict the bucket pages.
+     */
+    private CompletableFuture<byte[]> readBlobAsync(Item pointer) {
+        final int firstPageNum = pointer.blobFirstPage();
+        final byte[] value = new byte[pointer.blobLength()];
+        final int pagesNum = (value.length + blobChunkSize() - 1) / blobChunkSize();
+
+        if (firstPageNum + pagesNum > this.pageCache.numPages()) {
+            return readBlobChainAsync(firstPageNum, value, 0);
+        }
+
+        List<CompletableFuture<byte[]>> pages = new ArrayList<>();
+        for (int i = 0; i < pagesNum; i++) {
+            pages.add(this.pageCache.readAsync(firstPageNum + i, false));
+        }
+
+        return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).thenCompose(ignored -> {
+            for (int i = 0; i < pagesNum; i++) {
+                byte[] page = pages.get(i).join();
+                int expectedNextPageNum = (i + 1 < pagesNum) ? firstPageNum + i + 1 : Page.NO_PAGE;
+
+                if (ByteBuffer.wrap(page).getInt() != expectedNextPageNum) {
+                    return readBlobChainAsync(firstPageNum, value, 0);
+                }
+
+                copyBlobChunk(page, value, i * blobChunkSize());
+            }
+
+            return CompletableFuture.completedFuture(value);
+        });
+    }
+
+    private CompletableFuture<byte[]> readBlobChainAsync(int pageNum, byte[] value, int offset) {
+        return this.pageCache.readAsync(pageNum, false).thenCompose(page -> {
+            int nextOffset = copyBlobChunk(page, value, offset);
+
+            return nextOffset == value.length
+                    ? CompletableFuture.completedFuture(value)
+                    : readBlobChainAsync(ByteBuffer.wrap(page).getInt(), value, nextOffset);
+        });
+    }
+
+    /**
+     * @return offset of the next chunk of the value
+     */
+    private int copyBlobChunk(byte[] page, byte[] value, int offset) {
+        int length = Math.min(blobChunkSize(), value.length - offset);
+        System.arraycopy(page, BLOB_HEADER_SIZE, value, offset, length);
+
+        return offset + length;
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(IOSupplier<T> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return operation.get();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, this.asyncExecutor);
+    }
+
+    @FunctionalInterface
+    private interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+
+    /* -------------------- Blobs -------------------- */
+
+    /*
+     * Values which would take more than a quarter of a page are stored in a chain of dedicated blob pages,
+     * bucket page holds only a pointer item referencing the first page of the chain and the length of the value.
+     * Blob pages are allocated through the FSM like any other overflow pages.
+     *
+     * Blob page layout: next page number (4 bytes) followed by a chunk of the value.
+     */
+
+    static final int BLOB_HEADER_SIZE = 4;
+
+    private int maxInlineItemSize() {
+        return maxInlineItemSize(this.pageSize);
+    }
+
+    static int maxInlineItemSize(int pageSize) {
+        return maxItemSize(pageSize) / 4;
+    }
+
+    private int blobChunkSize() {
+        return this.pageSize - BLOB_HEADER_SIZE;
+    }
+
+    /**
+     * @return number of the first page of the blob
+     */
+    private int writeBlob(byte[] value) throws IOException {
+        final int chunkSize = blobChunkSize();
+        final int pagesNum = (value.length + chunkSize - 1) / chunkSize;
+
+        // adjacent pages, so the value is read sequentially as long as they belong to the same split point
+        int firstFsmPageNum = allocateOverflowPages(pagesNum);
+
+        int[] pageNums = new int[pagesNum];
+        for (int i = 0; i < pagesNum; i++) {
+            pageNums[i] = fsmPageNumToOverflowPageNum(firstFsmPageNum + i);
+        }
+
+        for (int i = 0; i < pagesNum; i++) {
+            byte[] page = new byte[this.pageSize];
+            int offset = i * chunkSize;
+
+            ByteBuffer.wrap(page)
+                    .putInt(i + 1 < pagesNum ? pageNums[i + 1] : Page.NO_PAGE)
+                    .put(value, offset, Math.min(chunkSize, value.length - offset));
+
+            writeRawPage(pageNums[i], page);
+        }
+
+        return pageNums[0];
+    }
+
+    private byte[] readBlob(Item pointer) throws IOException {
+        byte[] value = new byte[pointer.blobLength()];
+
+        try (InputStream stream = new BlobInputStream(pointer)) {
+            int offset = 0;
+            while (offset < value.length) {
+                offset += stream.read(value, offset, value.length - offset);
+            }
+        }
+
+        return value;
+    }
+
+    private void freeBlob(Item pointer) throws IOException {
+        int pageNum = pointer.blobFirstPage();
+
+        do {
+            int nextPageNum = ByteBuffer.wrap(readRawPage(pageNum)).getInt();
+            this.fsm.free(overflowPageNumToFsmPageNum(pageNum));
+
+            pageNum = nextPageNum;
+        } while (pageNum != Page.NO_PAGE);
+    }
+
+    private class BlobInputStream extends InputStream {
+
+        private int remaining;
+        private int nextPageNum;
+
+        private byte[] page;
+        private int pagePosition;
+
+        BlobInputStream(Item pointer) {
+            this.remaining = pointer.blobLength();
+            this.nextPageNum = pointer.blobFirstPage();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensurePage()) {
+                return -1;
+            }
+
+            this.remaining--;
+            return Byte.toUnsignedInt(this.page[this.pagePosition++]);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!ensurePage()) {
+                return -1;
+            }
+
+            int bytesToCopy = Math.min(len, Math.min(this.remaining, this.page.length - this.pagePosition));
+            System.arraycopy(this.page, this.pagePosition, b, off, bytesToCopy);
+
+            this.pagePosition += bytesToCopy;
+            this.remaining -= bytesToCopy;
+
+            return bytesToCopy;
+        }
+
+        @Override
+        public int available() {
+            return this.page == null ? 0 : Math.min(this.remaining, this.page.length - this.pagePosition);
+        }
+
+        /**
+         * @return false if the end of the value has been reached
+         */
+        private boolean ensurePage() throws IOException {
+            if (this.remaining == 0) {
+                return false;
+            }
+
+            if (this.page == null || this.pagePosition == this.page.length) {
+                this.page = readRawPage(this.nextPageNum);
+                this.nextPageNum = ByteBuffer.wrap(this.page).getInt();
+                this.pagePosition = BLOB_HEADER_SIZE;
+            }
+
+            return true;
+        }
+    }
+
     /* -------------------- Precondition checks -------------------- */
 
     private static void checkKeyNotNull(byte[] key) {
@@ -421,13 +1364,35 @@ public class DiskHahMap {
         assertState(key != null, "Null values are not allowed");
     }
 
-    private static void checkKeySize(byte[] key) {
-        assertState(key.length <= Item.MAX_KEY_VALUE_SIZE, "Keys larger than page size are not supported for now");
+    private void checkKeySize(byte[] key) {
+        assertState(key.length <= maxKeySize(this.pageSize), "Keys larger than page size are not supported for now");
     }
 
     /* -------------------- Calculations -------------------- */
 
-    private static int hash(byte[] key) {
+    /**
+     * Max size of an item is equal to the free space of an empty page.
+     */
+    private int maxItemSize() {
+        return maxItemSize(this.pageSize);
+    }
+
+    static int maxItemSize(int pageSize) {
+        return pageSize - Page.HEADER_SIZE;
+    }
+
+    /**
+     * There should be enough space for a blob pointer item.
+     */
+    static int maxKeySize(int pageSize) {
+        return maxItemSize(pageSize) - Item.HEADER_SIZE - Item.BLOB_POINTER_SIZE;
+    }
+
+    private Page emptyPage() {
+        return Page.empty(this.pageSize);
+    }
+
+    static int hash(byte[] key) {
         return Arrays.hashCode(key);
     }
 
@@ -459,8 +1424,9 @@ public class DiskHahMap {
     }
 
     private int fsmPageNumToOverflowPageNum(int fsmPageNum) {
-        final int splitPoint = this.metadata.activeSplitPoint();
-        final int[] overflowPages = this.metadata.overflowPages;
+        final Metadata metadata = this.metadata;
+        final int splitPoint = metadata.activeSplitPoint();
+        final int[] overflowPages = metadata.overflowPages;
         int pagesCount = 0;
 
         for (int i = 0; i <= splitPoint; i++) {
@@ -480,8 +1446,9 @@ public class DiskHahMap {
     }
 
     private int overflowPageNumToFsmPageNum(int overflowPageNum) {
-        final int splitPoint = this.metadata.activeSplitPoint();
-        final int[] overflowPages = this.metadata.overflowPages;
+        final Metadata metadata = this.metadata;
+        final int splitPoint = metadata.activeSplitPoint();
+        final int[] overflowPages = metadata.overflowPages;
 
         for (int i = 0, pageCount = 0, buckets = 1; i <= splitPoint; i++, buckets <<= 1) {
             pageCount += overflowPages[i];
@@ -496,29 +1463,130 @@ public class DiskHahMap {
         throw new IllegalStateException("There is no overflow page with number: " + overflowPageNum);
     }
 
+    /* -------------------- Latches -------------------- */
+
+    /**
+     * Latches the bucket of the given hash. The bucket may be split while the latch is awaited, so the bucket
+     * of the hash is checked again once the latch is acquired. It stays the same until the latch is released,
+     * since a split latches the bucket as well.
+     */
+    private Lock latchBucket(int hash, boolean exclusive) {
+        while (true) {
+            int bucketIndex = bucketIndex(hash);
+
+            StampedLock latch = this.latches[latchIndex(bucketIndex)];
+            Lock lock = exclusive ? latch.asWriteLock() : latch.asReadLock();
+
+            lock.lock();
+
+            if (bucketIndex(hash) == bucketIndex) {
+                return lock;
+            }
+
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Latches the buckets of all the hashes for reading. Latches are acquired in the order of their indexes,
+     * as they are by a split, so the threads holding several latches never wait for each other in a cycle.
+     */
+    private List<Lock> latchBuckets(int[] hashes) {
+        while (true) {
+            int[] bucketIndexes = new int[hashes.length];
+            Set<Integer> latchIndexes = new TreeSet<>();
+
+            for (int i = 0; i < hashes.length; i++) {
+                bucketIndexes[i] = bucketIndex(hashes[i]);
+                latchIndexes.add(latchIndex(bucketIndexes[i]));
+            }
+
+            List<Lock> locks = new ArrayList<>();
+
+            for (int latchIndex : latchIndexes) {
+                Lock lock = this.latches[latchIndex].asReadLock();
+                lock.lock();
+                locks.add(lock);
+            }
+
+            boolean split = false;
+            for (int i = 0; i < hashes.length && !split; i++) {
+                split = bucketIndex(hashes[i]) != bucketIndexes[i];
+            }
+
+            if (!split) {
+                return locks;
+            }
+
+            for (Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Non-blocking version of the {@link #latchBucket} which latches the bucket only for reading.
+     *
+     * @return null if the bucket is latched exclusively at the moment
+     */
+    private Lock tryLatchBucket(int hash) {
+        int bucketIndex = bucketIndex(hash);
+        Lock lock = this.latches[latchIndex(bucketIndex)].asReadLock();
+
+        if (!lock.tryLock()) {
+            return null;
+        }
+
+        if (bucketIndex(hash) != bucketIndex) {
+            lock.unlock();
+            return null;
+        }
+
+        return lock;
+    }
+
+    private static int latchIndex(int bucketIndex) {
+        return bucketIndex & (LATCH_STRIPES - 1);
+    }
+
     private static int mask(int nBits) {
         return (1 << nBits) - 1;
     }
 
     /* -------------------- IO -------------------- */
 
-    private int numPages() throws IOException {
-        return (int) ((this.dataChannel.size() - Metadata.SIZE) / PAGE_SIZE);
-    }
-
     private Page readPage(int pageNum) throws IOException {
-        assertState(pageNum >= 0 && pageNum < numPages(), "Can't read not existing page");
+        PageCache.Frame frame = this.pageCache.pin(pageNum);
 
-        byte[] pageBytes = Utils.read(this.dataChannel, pageOffset(pageNum), PAGE_SIZE);
-        return new Page(pageBytes);
+        try {
+            return new Page(frame.data);
+        } finally {
+            this.pageCache.unpin(frame, false);
+        }
     }
 
     private void writePage(int pageNumber, Page page) throws IOException {
-        Utils.write(this.dataChannel, pageOffset(pageNumber), page.getBytes());
+        writeRawPage(pageNumber, page.getBytes(this.pageSize));
+    }
+
+    private byte[] readRawPage(int pageNum) throws IOException {
+        PageCache.Frame frame = this.pageCache.pin(pageNum);
+
+        try {
+            return frame.data.clone();
+        } finally {
+            this.pageCache.unpin(frame, false);
+        }
     }
 
-    private static long pageOffset(int pageNum) {
-        return Metadata.SIZE + pageNum * PAGE_SIZE;
+    private void writeRawPage(int pageNum, byte[] pageBytes) throws IOException {
+        PageCache.Frame frame = this.pageCache.pinForOverwrite(pageNum);
+
+        try {
+            System.arraycopy(pageBytes, 0, frame.data, 0, pageBytes.length);
+        } finally {
+            this.pageCache.unpin(frame, true);
+        }
     }
 
     /* -------------------- Array manipulation routines -------------------- */
@@ -543,21 +1611,28 @@ public class DiskHahMap {
     /* -------------- Data classes -------------- */
 
     @AllArgsConstructor
-    private static class Metadata {
+    static class Metadata {
 
         static final int ARRAY_LENGTH = HASH_LENGTH + 1;
-        static final int SIZE = 1 + 4 + ARRAY_LENGTH * 4;
+        static final int SIZE = 4 + 1 + 4 + ARRAY_LENGTH * 4 + 8 + 8;
 
+        // 4 bytes, defined upon creation of the map and never changed
+        int pageSize;
         // 1 byte
         int hashBits;
         // 4 bytes
         int splitIndex;
         // ARRAY_LENGTH * 4
         int[] overflowPages;
+        // 8 bytes, number of items
+        long size;
+        // 8 bytes, total size of the items, used to calculate load factor
+        long dataSize;
 
         Metadata(byte[] bytes) {
             ByteBuffer buffer = ByteBuffer.wrap(bytes);
 
+            this.pageSize = buffer.getInt();
             this.hashBits = Byte.toUnsignedInt(buffer.get());
             this.splitIndex = buffer.getInt();
             this.overflowPages = new int[ARRAY_LENGTH];
@@ -565,12 +1640,16 @@ public class DiskHahMap {
             for (int i = 0; i < this.overflowPages.length; i++) {
                 this.overflowPages[i] = buffer.getInt();
             }
+
+            this.size = buffer.getLong();
+            this.dataSize = buffer.getLong();
         }
 
         byte[] getBytes() {
             byte[] bytes = new byte[SIZE];
             ByteBuffer buffer = ByteBuffer.wrap(bytes);
 
+            buffer.putInt(this.pageSize);
             buffer.put((byte) this.hashBits);
             buffer.putInt(this.splitIndex);
 
@@ -578,13 +1657,43 @@ public class DiskHahMap {
                 buffer.putInt(count);
             }
 
+            buffer.putLong(this.size);
+            buffer.putLong(this.dataSize);
+
             return bytes;
         }
 
+        Metadata copy() {
+            return new Metadata(this.pageSize, this.hashBits, this.splitIndex, this.overflowPages.clone(), this.size, this.dataSize);
+        }
+
         void incOverflowPages() {
             this.overflowPages[activeSplitPoint()]++;
         }
 
+        void incSplitIndex() {
+            this.splitIndex++;
+
+            if (this.splitIndex == (1 << (this.hashBits - 1))) {
+                this.hashBits++;
+                this.splitIndex = 0;
+            }
+        }
+
+        void itemAdded(Item item) {
+            this.size++;
+            this.dataSize += item.size();
+        }
+
+        void itemRemoved(Item item) {
+            this.size--;
+            this.dataSize -= item.size();
+        }
+
+        void itemReplaced(Item oldItem, Item newItem) {
+            this.dataSize += newItem.size() - oldItem.size();
+        }
+
         int activeSplitPoint() {
             // If no splits were performed so far we consider current
             // split point as active or the next split point otherwise.
@@ -601,10 +1710,17 @@ public class DiskHahMap {
             return (1 << (this.hashBits - 1)) + this.splitIndex;
         }
 
+        /**
+         * All the bucket pages of the active split point are allocated at once when the split point becomes active.
+         */
+        int allocatedBucketsNum() {
+            return 1 << activeSplitPoint();
+        }
+
         int expectedNumberOfPages() {
             final int splitPoint = activeSplitPoint();
 
-            int numPages = bucketsNum();
+            int numPages = allocatedBucketsNum();
             for (int i = 0; i <= splitPoint; i++) {
                 numPages += this.overflowPages[i];
             }
@@ -616,26 +1732,46 @@ public class DiskHahMap {
             return Arrays.stream(this.overflowPages, 0, activeSplitPoint() + 1).sum();
         }
 
-        static Metadata forInitial(int initialSize) {
+        static Metadata forInitial(int initialSize, int pageSize) {
             int bucketsNum = (initialSize == 1)
                     ? 1
                     : (Integer.highestOneBit(initialSize - 1) << 1);
 
             int hashBits = Integer.SIZE - Integer.numberOfLeadingZeros(bucketsNum);
 
-            return new Metadata(hashBits, 0, new int[ARRAY_LENGTH]);
+            return new Metadata(pageSize, hashBits, 0, new int[ARRAY_LENGTH], 0, 0);
         }
     }
 
+    /*
+     * Slotted page layout:
+     *
+     * +--------------------------------------+
+     * | items count | free space | next page |  header, 4 bytes each
+     * +--------------------------------------+
+     * | hash | offset | hash | offset | ...  |  slots sorted by hash, 4 + 2 bytes each
+     * +--------------------------------------+
+     * |              free space              |
+     * +--------------------------------------+
+     * | ... | key length | value length | key | value |  items data, filled from the end of the page
+     * +--------------------------------------+
+     *
+     * A lookup binary searches the slots for the hash right on the page bytes and deserializes only the matching item.
+     * Modifications are performed on the deserialized page, which is packed back without any gaps.
+     */
     @AllArgsConstructor
-    private static class Page {
+    static class Page {
 
         static final int NO_PAGE = -1;
         static final Item[] NO_ITEMS = new Item[0];
 
-        static final int HEADER_SIZE = 4 + 2 + 2 /* 2 additional bytes for items count in binary representation */;
+        static final int HEADER_SIZE = 4 + 4 + 4 /* 4 additional bytes for items count in binary representation */;
+        // offset is unsigned, so 2 bytes are enough even for pages of 64KB
+        static final int SLOT_SIZE = 4 + 2;
 
-        // 2 bytes
+        static final int NOT_FOUND = -1;
+
+        // 4 bytes, 2 bytes aren't enough for pages of 64KB
         int freeSpace;
 
         // 4 bytes
@@ -646,32 +1782,96 @@ public class DiskHahMap {
         Page(byte[] bytes) {
             ByteBuffer buffer = ByteBuffer.wrap(bytes);
 
-            int itemsCount = Short.toUnsignedInt(buffer.getShort());
-            this.freeSpace = Short.toUnsignedInt(buffer.getShort());
+            int itemsCount = buffer.getInt();
+            this.freeSpace = buffer.getInt();
             this.nextPageNumber = buffer.getInt();
 
             this.items = new Item[itemsCount];
 
             for (int i = 0; i < this.items.length; i++) {
-                this.items[i] = new Item(buffer);
+                this.items[i] = itemAt(bytes, i);
             }
         }
 
-        byte[] getBytes() {
-            byte[] bytes = new byte[PAGE_SIZE];
+        byte[] getBytes(int pageSize) {
+            byte[] bytes = new byte[pageSize];
             ByteBuffer buffer = ByteBuffer.wrap(bytes);
 
-            buffer.putShort((short) this.items.length);
-            buffer.putShort((short) this.freeSpace);
+            buffer.putInt(this.items.length);
+            buffer.putInt(this.freeSpace);
             buffer.putInt(this.nextPageNumber);
 
-            for (Item item : this.items) {
-                buffer.put(item.getBytes());
+            Item[] sortedItems = this.items.clone();
+            Arrays.sort(sortedItems, (i1, i2) -> Integer.compare(i1.hash, i2.hash));
+
+            int dataOffset = pageSize;
+
+            for (int i = 0; i < sortedItems.length; i++) {
+                Item item = sortedItems[i];
+                dataOffset -= item.dataSize();
+
+                buffer.putInt(slotOffset(i), item.hash);
+                buffer.putShort(slotOffset(i) + 4, (short) dataOffset);
+
+                buffer.position(dataOffset);
+                item.writeData(buffer);
             }
 
             return bytes;
         }
 
+        /* Methods working on the raw page bytes */
+
+        static int nextPageNumber(byte[] page) {
+            return ByteBuffer.wrap(page).getInt(8);
+        }
+
+        /**
+         * @return index of the slot of the item with the given key or {@link #NOT_FOUND}
+         */
+        static int findSlot(byte[] page, byte[] key, int hash) {
+            final ByteBuffer buffer = ByteBuffer.wrap(page);
+            final int itemsCount = buffer.getInt(0);
+
+            // the leftmost slot with the given hash
+            int low = 0;
+            int high = itemsCount;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                if (buffer.getInt(slotOffset(mid)) < hash) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            // there could be several items with the same hash
+            for (int slot = low; slot < itemsCount && buffer.getInt(slotOffset(slot)) == hash; slot++) {
+                int dataOffset = Short.toUnsignedInt(buffer.getShort(slotOffset(slot) + 4));
+
+                if (Item.keyEqualsTo(buffer, dataOffset, key)) {
+                    return slot;
+                }
+            }
+
+            return NOT_FOUND;
+        }
+
+        static Item itemAt(byte[] page, int slot) {
+            ByteBuffer buffer = ByteBuffer.wrap(page);
+
+            int hash = buffer.getInt(slotOffset(slot));
+            buffer.position(Short.toUnsignedInt(buffer.getShort(slotOffset(slot) + 4)));
+
+            return new Item(hash, buffer);
+        }
+
+        private static int slotOffset(int slot) {
+            return HEADER_SIZE + slot * SLOT_SIZE;
+        }
+
         void addItem(Item item) {
             this.freeSpace -= item.size();
             this.items = add(this.items, item);
@@ -691,58 +1891,103 @@ public class DiskHahMap {
             return this.items.length == 0;
         }
 
-        static Page empty() {
-            // max free space amount is equal to the max size of a single item
-            return new Page(Item.MAX_SIZE, NO_PAGE, NO_ITEMS);
+        static Page empty(int pageSize) {
+            return new Page(pageSize - HEADER_SIZE, NO_PAGE, NO_ITEMS);
         }
     }
 
     @AllArgsConstructor
-    private static class Item {
-        static final int MAX_SIZE = PAGE_SIZE - Page.HEADER_SIZE;
-        static final int MAX_KEY_VALUE_SIZE = MAX_SIZE - 4 /* hash */ - 2 /* key.length */ - 2 /* value length */;
+    static class Item {
+        // space taken by an item besides its key and value, including its slot
+        static final int HEADER_SIZE = Page.SLOT_SIZE + 2 /* key.length */ + 2 /* value length */;
 
-        // 4 bytes
+        // value length of a pointer item, no inline value can be that long
+        static final int BLOB_MARKER = 0xFFFF;
+        // first page number (4 bytes) + value length (4 bytes)
+        static final int BLOB_POINTER_SIZE = 4 + 4;
+
+        // 4 bytes, stored in the slot
         int hash;
         // 2 bytes length + key byte array
         byte[] key;
         // 2 bytes length + value byte array
         byte[] value;
 
-        Item(ByteBuffer buffer) {
-            this.hash = buffer.getInt();
+        // value holds a pointer to the blob instead of the value itself
+        boolean blob;
+
+        Item(int hash, ByteBuffer buffer) {
+            this.hash = hash;
 
             int keyLength = Short.toUnsignedInt(buffer.getShort());
             int valueLength = Short.toUnsignedInt(buffer.getShort());
 
+            this.blob = valueLength == BLOB_MARKER;
             this.key = new byte[keyLength];
-            this.value = new byte[valueLength];
+            this.value = new byte[this.blob ? BLOB_POINTER_SIZE : valueLength];
 
             buffer.get(this.key);
             buffer.get(this.value);
         }
 
-        byte[] getBytes() {
-            byte[] bytes = new byte[size()];
-            ByteBuffer buffer = ByteBuffer.wrap(bytes);
-
-            buffer.putInt(this.hash);
+        void writeData(ByteBuffer buffer) {
             buffer.putShort((short) this.key.length);
-            buffer.putShort((short) this.value.length);
+            buffer.putShort((short) (this.blob ? BLOB_MARKER : this.value.length));
 
             buffer.put(this.key);
             buffer.put(this.value);
-
-            return bytes;
         }
 
         int size() {
-            return 4 + 2 + this.key.length + 2 + this.value.length;
+            return HEADER_SIZE + this.key.length + this.value.length;
+        }
+
+        /**
+         * @return size of the item in the data area of a page
+         */
+        int dataSize() {
+            return size() - Page.SLOT_SIZE;
         }
 
         boolean keyEqualsTo(byte[] key, int hash) {
             return this.hash == hash && Arrays.equals(this.key, key);
         }
+
+        /**
+         * Compares the key of the serialized item starting at the given offset with the given one without copying it.
+         */
+        static boolean keyEqualsTo(ByteBuffer page, int dataOffset, byte[] key) {
+            if (Short.toUnsignedInt(page.getShort(dataOffset)) != key.length) {
+                return false;
+            }
+
+            final int keyOffset = dataOffset + 4;
+
+            for (int i = 0; i < key.length; i++) {
+                if (page.get(keyOffset + i) != key[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        int blobFirstPage() {
+            return ByteBuffer.wrap(this.value).getInt(0);
+        }
+
+        int blobLength() {
+            return ByteBuffer.wrap(this.value).getInt(4);
+        }
+
+        static Item blobPointer(int hash, byte[] key, int firstPageNum, int length) {
+            byte[] pointer = ByteBuffer.allocate(BLOB_POINTER_SIZE)
+                    .putInt(firstPageNum)
+                    .putInt(length)
+                    .array();
+
+            return new Item(hash, key, pointer, true);
+        }
     }
 
     /*private static class Flags {
@@ -794,4 +2039,33 @@ public class DiskHahMap {
     public static DiskHahMap oneBucket(SeekableByteChannel dataChannel, SeekableByteChannel fsmChannel) throws IOException {
         return new DiskHahMap(dataChannel, fsmChannel, 1);
     }
+
+    /**
+     * Creates a new map on top of memory-mapped data and FSM files.
+     */
+    public static DiskHahMap createMapped(Path dataFile, Path fsmFile, int initialSize, DiskMapOptions options) throws IOException {
+        return new DiskHahMap(MappedStorage.open(dataFile), MappedStorage.open(fsmFile, FSM_CHUNK_SIZE), initialSize, options);
+    }
+
+    /**
+     * Creates a new map whose data file is read asynchronously by the {@link #getAsync(byte[])},
+     * the FSM is accessed with the regular channel I/O.
+     */
+    public static DiskHahMap createAsync(Path dataFile, Path fsmFile, int initialSize, DiskMapOptions options) throws IOException {
+        return new DiskHahMap(AsyncChannelStorage.open(dataFile), new ChannelStorage(Utils.openRWChannel(fsmFile)), initialSize, options);
+    }
+
+    /**
+     * Opens an existing map whose data file is read asynchronously by the {@link #getAsync(byte[])}.
+     */
+    public static DiskHahMap openAsync(Path dataFile, Path fsmFile, DiskMapOptions options) throws IOException {
+        return new DiskHahMap(AsyncChannelStorage.open(dataFile), new ChannelStorage(Utils.openRWChannel(fsmFile)), options);
+    }
+
+    /**
+     * Opens an existing map memory-mapping its data and FSM files.
+     */
+    public static DiskHahMap openMapped(Path dataFile, Path fsmFile, DiskMapOptions options) throws IOException {
+        return new DiskHahMap(MappedStorage.open(dataFile), MappedStorage.open(fsmFile, FSM_CHUNK_SIZE), options);
+    }
 }
@@ -0,0 +1,454 @@
+package com.test.map.disk;
+
+import com.test.map.disk.DiskHahMap.Item;
+import com.test.map.disk.DiskHahMap.Metadata;
+import com.test.map.disk.DiskHahMap.Page;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static com.test.map.disk.Utils.assertState;
+
+/**
+ * Builds a new {@link DiskHahMap} from a stream of entries writing its data and FSM storages sequentially,
+ * each page exactly once, instead of putting the entries one by one.
+ * <p>
+ * Entries are sorted by their buckets in memory. If a spill storage is given, entries which don't fit
+ * into the memory budget are sorted in chunks, spilled to it as sorted runs and merged afterwards, in this case
+ * the number of buckets has to be chosen before all the entries are seen, so it's estimated from the expected count
+ * of entries and the average size of the entries of the first run. Without spilling the exact size of the data is used.
+ * <p>
+ * Output layout: metadata, all the bucket pages, then all the overflow and blob pages. Both page regions are
+ * filled in order, so the storage is written by two sequential streams. If the same key occurs several times,
+ * the last value wins. The storages aren't closed, the map is opened by the usual constructor afterwards.
+ */
+public class DiskMapBulkLoader {
+
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    // approximate memory overhead of a buffered entry besides its arrays
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int WRITE_BUFFER_PAGES = 256;
+    private static final int SPILL_CHUNK_SIZE = 1024 * 1024;
+
+    private final Storage dataStorage;
+    private final Storage fsmStorage;
+    private final int pageSize;
+    private final double maxLoadFactor;
+
+    private Storage spillStorage;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    // chosen once the number of buckets is known
+    private Metadata metadata;
+    private int bucketMask;
+
+    public DiskMapBulkLoader(Storage dataStorage, Storage fsmStorage, DiskMapOptions options) throws IOException {
+        assertState(dataStorage.size() == 0, "Data storage is not empty");
+
+        this.dataStorage = dataStorage;
+        this.fsmStorage = fsmStorage;
+        this.pageSize = options.getPageSize();
+        this.maxLoadFactor = options.getMaxLoadFactor();
+    }
+
+    /**
+     * @param spillStorage empty storage for the sorted runs, its content is garbage after the load
+     * @param memoryBudget approximate size of the entries sorted in memory at once
+     */
+    public DiskMapBulkLoader spillTo(Storage spillStorage, long memoryBudget) throws IOException {
+        assertState(spillStorage.size() == 0, "Spill storage is not empty");
+        assertState(memoryBudget > 0, "Memory budget must be positive");
+
+        this.spillStorage = spillStorage;
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * @param expectedCount expected number of the entries, used to choose the number of buckets if entries are spilled
+     * @return number of the entries in the built map
+     */
+    public long load(Iterator<? extends Map.Entry<byte[], byte[]>> entries, long expectedCount) throws IOException {
+        List<Entry> buffer = new ArrayList<>();
+        long bufferBytes = 0;
+
+        List<RunReader> runs = new ArrayList<>();
+        long spillEnd = 0;
+        long count = 0;
+        long dataSize = 0;
+
+        while (entries.hasNext()) {
+            Map.Entry<byte[], byte[]> mapEntry = entries.next();
+
+            assertState(mapEntry.getKey() != null, "Null keys are not allowed");
+            assertState(mapEntry.getValue() != null, "Null values are not allowed");
+
+            Entry entry = new Entry(DiskHahMap.hash(mapEntry.getKey()), mapEntry.getKey(), mapEntry.getValue());
+
+            buffer.add(entry);
+            bufferBytes += entry.key.length + entry.value.length + ENTRY_OVERHEAD;
+
+            count++;
+            dataSize += storedSize(entry);
+
+            if (this.spillStorage != null && bufferBytes >= this.memoryBudget) {
+                if (this.metadata == null) {
+                    chooseBuckets((long) ((double) dataSize / count * Math.max(count, expectedCount)));
+                }
+
+                long runStart = spillEnd;
+                spillEnd = spill(sortByBucket(buffer), runStart);
+                runs.add(new RunReader(runStart, spillEnd));
+
+                buffer.clear();
+                bufferBytes = 0;
+            }
+        }
+
+        if (this.metadata == null) {
+            chooseBuckets(dataSize);
+        }
+
+        return write(merge(runs, sortByBucket(buffer)));
+    }
+
+    private void chooseBuckets(long expectedDataSize) {
+        double bucketCapacity = DiskHahMap.maxItemSize(this.pageSize) * this.maxLoadFactor;
+        long bucketsNum = Math.max(1, (long) Math.ceil(expectedDataSize / bucketCapacity));
+
+        this.metadata = Metadata.forInitial((int) Math.min(bucketsNum, 1 << 30), this.pageSize);
+        // no splits have been performed yet, so a bucket index is just the lower bits of the hash
+        this.bucketMask = this.metadata.bucketsNum() - 1;
+    }
+
+    private int storedSize(Entry entry) {
+        assertState(entry.key.length <= DiskHahMap.maxKeySize(this.pageSize), "Keys larger than page size are not supported for now");
+
+        int size = Item.HEADER_SIZE + entry.key.length + entry.value.length;
+
+        return size > DiskHahMap.maxInlineItemSize(this.pageSize)
+                ? Item.HEADER_SIZE + entry.key.length + Item.BLOB_POINTER_SIZE
+                : size;
+    }
+
+    private List<Entry> sortByBucket(List<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.bucket = entry.hash & this.bucketMask;
+        }
+
+        // the sort is stable, so entries of the same bucket keep the order in which they have been added
+        entries.sort((e1, e2) -> Integer.compare(e1.bucket, e2.bucket));
+        return entries;
+    }
+
+    /* -------------------- Sorted runs -------------------- */
+
+    /*
+     * Spilled entry layout: hash (4 bytes), key length (4), value length (4), key, value.
+     */
+
+    private static final int SPILLED_HEADER_SIZE = 4 + 4 + 4;
+
+    /**
+     * @return end of the run in the spill storage
+     */
+    private long spill(List<Entry> entries, long offset) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(SPILL_CHUNK_SIZE);
+
+        for (Entry entry : entries) {
+            int entrySize = SPILLED_HEADER_SIZE + entry.key.length + entry.value.length;
+
+            if (chunk.remaining() < entrySize) {
+                offset = writeChunk(chunk, offset);
+
+                if (chunk.capacity() < entrySize) {
+                    chunk = ByteBuffer.allocate(entrySize);
+                }
+            }
+
+            chunk.putInt(entry.hash)
+                    .putInt(entry.key.length)
+                    .putInt(entry.value.length)
+                    .put(entry.key)
+                    .put(entry.value);
+        }
+
+        return writeChunk(chunk, offset);
+    }
+
+    private long writeChunk(ByteBuffer chunk, long offset) throws IOException {
+        byte[] bytes = new byte[chunk.position()];
+        chunk.flip();
+        chunk.get(bytes);
+        chunk.clear();
+
+        this.spillStorage.write(offset, bytes);
+        return offset + bytes.length;
+    }
+
+    /**
+     * Merges the sorted runs and the in-memory entries into a single stream ordered by bucket.
+     * Ties are resolved in the favour of the earlier source, so the entries of a bucket stay in the original order.
+     */
+    private Iterator<Entry> merge(List<RunReader> runs, List<Entry> lastRun) throws IOException {
+        if (runs.isEmpty()) {
+            return lastRun.iterator();
+        }
+
+        List<Iterator<Entry>> sources = new ArrayList<>(runs);
+        sources.add(lastRun.iterator());
+
+        PriorityQueue<Head> heads = new PriorityQueue<>((h1, h2) -> h1.entry.bucket != h2.entry.bucket
+                ? Integer.compare(h1.entry.bucket, h2.entry.bucket)
+                : Integer.compare(h1.source, h2.source));
+
+        for (int i = 0; i < sources.size(); i++) {
+            if (sources.get(i).hasNext()) {
+                heads.add(new Head(i, sources.get(i).next()));
+            }
+        }
+
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Entry next() {
+                Head head = heads.poll();
+                Iterator<Entry> source = sources.get(head.source);
+
+                if (source.hasNext()) {
+                    heads.add(new Head(head.source, source.next()));
+                }
+
+                return head.entry;
+            }
+        };
+    }
+
+    private class RunReader implements Iterator<Entry> {
+
+        private long position;
+        private final long end;
+
+        private ByteBuffer chunk = ByteBuffer.allocate(0);
+
+        RunReader(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.chunk.hasRemaining() || this.position < this.end;
+        }
+
+        @Override
+        public Entry next() {
+            try {
+                ensure(SPILLED_HEADER_SIZE);
+
+                int hash = this.chunk.getInt();
+                byte[] key = new byte[this.chunk.getInt()];
+                byte[] value = new byte[this.chunk.getInt()];
+
+                ensure(key.length + value.length);
+                this.chunk.get(key).get(value);
+
+                Entry entry = new Entry(hash, key, value);
+                entry.bucket = hash & DiskMapBulkLoader.this.bucketMask;
+
+                return entry;
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't read spilled entries", e);
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (this.chunk.remaining() >= bytes) {
+                return;
+            }
+
+            int length = (int) Math.min(Math.max(SPILL_CHUNK_SIZE, bytes), this.end - this.position + this.chunk.remaining());
+            int fromStorage = length - this.chunk.remaining();
+
+            ByteBuffer newChunk = ByteBuffer.allocate(length);
+            newChunk.put(this.chunk);
+            newChunk.put(DiskMapBulkLoader.this.spillStorage.read(this.position, fromStorage));
+            newChunk.flip();
+
+            this.position += fromStorage;
+            this.chunk = newChunk;
+        }
+    }
+
+    private static class Head {
+
+        final int source;
+        final Entry entry;
+
+        Head(int source, Entry entry) {
+            this.source = source;
+            this.entry = entry;
+        }
+    }
+
+    /* -------------------- Output -------------------- */
+
+    private long write(Iterator<Entry> entries) throws IOException {
+        final Metadata metadata = this.metadata;
+        final int bucketsNum = metadata.bucketsNum();
+
+        PageWriter buckets = new PageWriter(0);
+        PageWriter overflowPages = new PageWriter(bucketsNum);
+
+        Entry next = entries.hasNext() ? entries.next() : null;
+
+        for (int bucket = 0; bucket < bucketsNum; bucket++) {
+            // the last value of a key wins
+            Map<ByteBuffer, Entry> bucketEntries = new LinkedHashMap<>();
+
+            while (next != null && next.bucket == bucket) {
+                bucketEntries.put(ByteBuffer.wrap(next.key), next);
+                next = entries.hasNext() ? entries.next() : null;
+            }
+
+            List<Page> pages = new ArrayList<>();
+            Page page = Page.empty(this.pageSize);
+            pages.add(page);
+
+            for (Entry entry : bucketEntries.values()) {
+                Item item = new Item(entry.hash, entry.key, entry.value, false);
+
+                if (item.size() > DiskHahMap.maxInlineItemSize(this.pageSize)) {
+                    item = Item.blobPointer(entry.hash, entry.key, writeBlob(entry.value, overflowPages), entry.value.length);
+                }
+
+                if (page.freeSpace < item.size()) {
+                    page = Page.empty(this.pageSize);
+                    pages.add(page);
+                }
+
+                page.addItem(item);
+                metadata.itemAdded(item);
+            }
+
+            // overflow pages of the chain go one after another
+            for (int i = 0; i < pages.size(); i++) {
+                pages.get(i).nextPageNumber = (i + 1 < pages.size()) ? overflowPages.nextPageNum() + i : Page.NO_PAGE;
+            }
+
+            buckets.write(pages.get(0).getBytes(this.pageSize));
+
+            for (int i = 1; i < pages.size(); i++) {
+                overflowPages.write(pages.get(i).getBytes(this.pageSize));
+            }
+        }
+
+        assertState(next == null, "Entries aren't sorted by bucket");
+
+        buckets.flush();
+        overflowPages.flush();
+
+        int overflowPagesNum = overflowPages.nextPageNum() - bucketsNum;
+        metadata.overflowPages[metadata.activeSplitPoint()] = overflowPagesNum;
+
+        this.dataStorage.write(0, metadata.getBytes());
+        this.dataStorage.sync();
+
+        new FreeSpaceMap(this.fsmStorage, true).takeFirst(overflowPagesNum);
+        this.fsmStorage.sync();
+
+        return metadata.size;
+    }
+
+    /**
+     * @return number of the first page of the blob
+     */
+    private int writeBlob(byte[] value, PageWriter overflowPages) throws IOException {
+        final int chunkSize = this.pageSize - DiskHahMap.BLOB_HEADER_SIZE;
+        final int pagesNum = (value.length + chunkSize - 1) / chunkSize;
+        final int firstPageNum = overflowPages.nextPageNum();
+
+        for (int i = 0; i < pagesNum; i++) {
+            byte[] page = new byte[this.pageSize];
+            int offset = i * chunkSize;
+
+            ByteBuffer.wrap(page)
+                    .putInt(i + 1 < pagesNum ? firstPageNum + i + 1 : Page.NO_PAGE)
+                    .put(value, offset, Math.min(chunkSize, value.length - offset));
+
+            overflowPages.write(page);
+        }
+
+        return firstPageNum;
+    }
+
+    /**
+     * Buffers consecutive pages and writes them to the data storage in large chunks.
+     */
+    private class PageWriter {
+
+        private final byte[] buffer = new byte[WRITE_BUFFER_PAGES * DiskMapBulkLoader.this.pageSize];
+
+        private int firstPageNum;
+        private int bufferedPages;
+
+        PageWriter(int firstPageNum) {
+            this.firstPageNum = firstPageNum;
+        }
+
+        int nextPageNum() {
+            return this.firstPageNum + this.bufferedPages;
+        }
+
+        void write(byte[] page) throws IOException {
+            System.arraycopy(page, 0, this.buffer, this.bufferedPages * page.length, page.length);
+
+            if (++this.bufferedPages == WRITE_BUFFER_PAGES) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (this.bufferedPages == 0) {
+                return;
+            }
+
+            int pageSize = DiskMapBulkLoader.this.pageSize;
+            long offset = Metadata.SIZE + (long) this.firstPageNum * pageSize;
+
+            DiskMapBulkLoader.this.dataStorage.write(offset, this.bufferedPages == WRITE_BUFFER_PAGES
+                    ? this.buffer
+                    : Arrays.copyOf(this.buffer, this.bufferedPages * pageSize));
+
+            this.firstPageNum += this.bufferedPages;
+            this.bufferedPages = 0;
+        }
+    }
+
+    private static class Entry {
+
+        final int hash;
+        final byte[] key;
+        final byte[] value;
+
+        int bucket;
+
+        Entry(int hash, byte[] key, byte[] value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.test.map.disk;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.test.map.disk.Utils.assertState;
+
+/**
+ * Tuning options of a {@link DiskHahMap}. Page size is used only when a map is created and is stored in its metadata,
+ * other options aren't persisted, so they may differ between openings of the same map.
+ */
+public class DiskMapOptions {
+
+    public static final int DEFAULT_CACHE_PAGES = 1024;
+    public static final double DEFAULT_MAX_LOAD_FACTOR = 0.75;
+
+    public static final int MIN_PAGE_SIZE = 256;
+    public static final int MAX_PAGE_SIZE = 64 * 1024;
+    // the most common size of the file system blocks and OS memory pages
+    public static final int DEFAULT_PAGE_SIZE = 4 * 1024;
+
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+    public static final long DEFAULT_CHECKPOINT_SIZE = 16 * 1024 * 1024;
+
+    private int cachePages = DEFAULT_CACHE_PAGES;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.CLOCK;
+    private double maxLoadFactor = DEFAULT_MAX_LOAD_FACTOR;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    private long checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+    private boolean fsmCached = true;
+    private Executor asyncExecutor = ForkJoinPool.commonPool();
+
+    public static DiskMapOptions defaults() {
+        return new DiskMapOptions();
+    }
+
+    /**
+     * @param cachePages number of pages kept in memory by the page cache
+     */
+    public DiskMapOptions cachePages(int cachePages) {
+        assertState(cachePages > 0, "Page cache must hold at least one page");
+
+        this.cachePages = cachePages;
+        return this;
+    }
+
+    public DiskMapOptions evictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        return this;
+    }
+
+    /**
+     * @param maxLoadFactor ratio of the total size of the items to the capacity of the bucket pages
+     *                      which triggers a bucket split
+     */
+    public DiskMapOptions maxLoadFactor(double maxLoadFactor) {
+        assertState(maxLoadFactor > 0, "Load factor must be positive");
+
+        this.maxLoadFactor = maxLoadFactor;
+        return this;
+    }
+
+    /**
+     * @param pageSize power of two between {@link #MIN_PAGE_SIZE} and {@link #MAX_PAGE_SIZE}
+     */
+    public DiskMapOptions pageSize(int pageSize) {
+        assertState(isValidPageSize(pageSize), "Page size must be a power of two between " + MIN_PAGE_SIZE + " and " + MAX_PAGE_SIZE);
+
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param groupCommitSize number of operations whose records are written to the write-ahead log with a single sync,
+     *                        1 makes each operation durable upon its completion
+     */
+    public DiskMapOptions groupCommitSize(int groupCommitSize) {
+        assertState(groupCommitSize > 0, "Group commit size must be positive");
+
+        this.groupCommitSize = groupCommitSize;
+        return this;
+    }
+
+    /**
+     * @param checkpointSize size of the write-ahead log upon reaching which the logged pages are written
+     *                       to the data and FSM storages and the log is started over
+     */
+    public DiskMapOptions checkpointSize(long checkpointSize) {
+        assertState(checkpointSize > 0, "Checkpoint size must be positive");
+
+        this.checkpointSize = checkpointSize;
+        return this;
+    }
+
+    /**
+     * @param fsmCached whether to keep the whole FSM in memory writing its modified pages only upon flush,
+     *                  it takes a bit per page of the data storage
+     */
+    public DiskMapOptions fsmCached(boolean fsmCached) {
+        this.fsmCached = fsmCached;
+        return this;
+    }
+
+    /**
+     * @param asyncExecutor executor which runs the asynchronous modifications and the asynchronous lookups
+     *                      which can't proceed without blocking
+     */
+    public DiskMapOptions asyncExecutor(Executor asyncExecutor) {
+        assertState(asyncExecutor != null, "Executor must be specified");
+
+        this.asyncExecutor = asyncExecutor;
+        return this;
+    }
+
+    public int getCachePages() {
+        return cachePages;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public double getMaxLoadFactor() {
+        return maxLoadFactor;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    public long getCheckpointSize() {
+        return checkpointSize;
+    }
+
+    public boolean isFsmCached() {
+        return fsmCached;
+    }
+
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    static boolean isValidPageSize(int pageSize) {
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && Integer.bitCount(pageSize) == 1;
+    }
+}
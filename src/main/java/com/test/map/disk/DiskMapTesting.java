@@ -4,6 +4,9 @@ import crypt.ssl.utils.Dumper;
 import lombok.SneakyThrows;
 
 import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static com.test.map.disk.Utils.assertState;
 
 public class DiskMapTesting {
 
@@ -18,6 +21,8 @@ public class DiskMapTesting {
         InMemoryChannel fsm = new InMemoryChannel();
 
         DiskHahMap map = DiskHahMap.oneBucket(data, fsm);
+        map.flush();
+
         DiskHahMap map2 = new DiskHahMap(data, fsm);
 
         Dumper.dumpToStdout(data.getArrayCopy());
@@ -39,6 +44,8 @@ public class DiskMapTesting {
             map.put(key(i), "value - " + i);
         }
 
+        map.flush();
+
         System.out.println("After initial filling");
         System.out.println("FSM");
         Dumper.dumpToStdout(fsm.getArrayCopy());
@@ -56,6 +63,8 @@ public class DiskMapTesting {
             map.remove(key(i));
         }
 
+        map.flush();
+
         System.out.println("After removing");
         for (int i = 0; i < num; i++) {
             System.out.println(map.get(key(i)));
@@ -69,6 +78,9 @@ public class DiskMapTesting {
             map.put(key(i), "Restored:" + i);
         }
 
+        map.flush();
+        System.out.println("Cache: " + map.cacheStats());
+
         System.out.println("After restoring some entries");
         for (int i = 0; i < num; i++) {
             System.out.println(map.get(key(i)));
@@ -79,6 +91,48 @@ public class DiskMapTesting {
         Dumper.dumpToStdout(data.getArrayCopy());
     }
 
+    @SneakyThrows
+    public static void walTesting() {
+        InMemoryChannel data = new InMemoryChannel();
+        InMemoryChannel fsm = new InMemoryChannel();
+        InMemoryChannel log = new InMemoryChannel();
+
+        DiskMapOptions options = DiskMapOptions.defaults().groupCommitSize(1);
+        DiskHahMap map = new DiskHahMap(new ChannelStorage(data), new ChannelStorage(fsm), new ChannelStorage(log), 4, options);
+
+        int num = 200;
+
+        for (int i = 0; i < num; i++) {
+            map.put(key(i), "value - " + i);
+        }
+
+        // the map isn't closed, as if the process crashed: data and FSM still hold the empty map, the entries are only in the log
+        System.out.println("Log size: " + log.size());
+
+        DiskHahMap recovered = new DiskHahMap(new ChannelStorage(data), new ChannelStorage(fsm), new ChannelStorage(log), options);
+
+        System.out.println("Recovered " + recovered.size() + " entries");
+        for (int i = 0; i < num; i++) {
+            System.out.println(recovered.get(key(i)));
+        }
+
+        recovered.close();
+
+        // pages evicted from the cache of a reopened map have to go to the log as well, not to the data storage
+        DiskMapOptions smallCache = DiskMapOptions.defaults().cachePages(16).checkpointSize(Long.MAX_VALUE);
+        DiskHahMap reopened = new DiskHahMap(new ChannelStorage(data), new ChannelStorage(fsm), new ChannelStorage(log), smallCache);
+        byte[] checkpointed = data.getArrayCopy();
+
+        for (int i = 0; i < 3000; i++) {
+            reopened.put(key(i), "reopened - " + i);
+        }
+
+        assertState(Arrays.equals(checkpointed, data.getArrayCopy()), "Data storage is modified before a checkpoint");
+        System.out.println("Data storage is untouched until a checkpoint");
+
+        reopened.close();
+    }
+
     private static String key(int n) {
         return "key#" + n;
     }
@@ -0,0 +1,19 @@
+package com.test.map.disk;
+
+/**
+ * Policy used by the {@link PageCache} to choose a page to evict when all of its frames are occupied.
+ */
+public enum EvictionPolicy {
+
+    /**
+     * Evicts the least recently used unpinned page. Keeps the exact access order,
+     * so each access costs a couple of pointer updates.
+     */
+    LRU,
+
+    /**
+     * Approximation of LRU: a hand sweeps the frames in a circle giving each recently accessed page
+     * a second chance. An access only sets a flag.
+     */
+    CLOCK
+}
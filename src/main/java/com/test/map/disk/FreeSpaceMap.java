@@ -1,17 +1,48 @@
 package com.test.map.disk;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Path;
+import java.util.Arrays;
 
 import static com.test.map.disk.Utils.assertState;
 
-public class FreeSpaceMap {
+/**
+ * Bitmap of the taken overflow pages stored in the pages of {@link #FSM_PAGE_SIZE} bytes.
+ * <p>
+ * FSM pages which have at least one free bit are tracked by the in-memory {@link SummaryBitmap}, it's built
+ * upon opening by a single sequential read of the storage and allows finding a free page without scanning the FSM.
+ * <p>
+ * In the cached mode the whole bitmap is kept in memory as an array of longs and pages are taken and freed
+ * without any I/O, modified FSM pages are written to the storage only by {@link #flush()} (or upon closing).
+ * Otherwise each modification reads and writes the FSM page immediately.
+ * <p>
+ * Thread-safe, all the public methods are synchronized.
+ */
+public class FreeSpaceMap implements Closeable {
 
     private static final int FSM_PAGE_SIZE = 32;
     private static final byte FULL_BYTE = (byte) 0xFF;
 
-    private final SeekableByteChannel fsmChannel;
+    // FSM pages are read in chunks when the summary is built
+    private static final int SCAN_CHUNK_SIZE = 64 * 1024;
+
+    private final Storage fsmStorage;
+    // FSM pages which aren't full
+    private final SummaryBitmap notFullPages = new SummaryBitmap();
+
+    // pages starting from this one have never been taken
+    private int highWaterMark;
+    // next-fit allocation starts from this page
+    private int cursor;
+
+    // cached mode only: bit i of the words is the bit of the i-th data page, so an FSM page takes 4 words
+    private long[] words;
+    private int cachedPages;
+    private final SummaryBitmap dirtyPages = new SummaryBitmap();
 
     public FreeSpaceMap(Path fsmPath) throws IOException {
         this(Utils.openRWChannel(fsmPath));
@@ -22,12 +53,64 @@ public class FreeSpaceMap {
     }
 
     public FreeSpaceMap(SeekableByteChannel channel, boolean newFsm) throws IOException {
-        this.fsmChannel = channel;
+        this(new ChannelStorage(channel), newFsm);
+    }
+
+    public FreeSpaceMap(Storage storage, boolean newFsm) throws IOException {
+        this(storage, newFsm, false);
+    }
+
+    public FreeSpaceMap(Storage storage, boolean newFsm, boolean cached) throws IOException {
+        this.fsmStorage = storage;
+
+        if (cached) {
+            this.words = new long[WORDS_PER_PAGE];
+        }
 
         if (newFsm) {
             assertEmpty();
         } else {
             checkFileSize();
+            load();
+        }
+    }
+
+    /**
+     * Builds the summary and fills the cache (if any) with a single sequential read of the storage.
+     */
+    private void load() throws IOException {
+        final long fileSize = fsmFileSize();
+
+        if (this.words != null) {
+            this.cachedPages = (int) (fileSize / FSM_PAGE_SIZE);
+            this.words = new long[Math.max(1, this.cachedPages) * WORDS_PER_PAGE];
+        }
+
+        for (long offset = 0; offset < fileSize; offset += SCAN_CHUNK_SIZE) {
+            byte[] chunk = this.fsmStorage.read(offset, (int) Math.min(SCAN_CHUNK_SIZE, fileSize - offset));
+            int firstPageNum = (int) (offset / FSM_PAGE_SIZE);
+
+            for (int i = 0; i < chunk.length / FSM_PAGE_SIZE; i++) {
+                if (!isFull(chunk, i * FSM_PAGE_SIZE)) {
+                    this.notFullPages.set(firstPageNum + i);
+                }
+            }
+
+            for (int i = chunk.length - 1; i >= 0; i--) {
+                if (chunk[i] != 0) {
+                    this.highWaterMark = (int) ((offset + i) * 8) + 32 - Integer.numberOfLeadingZeros(Byte.toUnsignedInt(chunk[i]));
+                    break;
+                }
+            }
+
+            if (this.words != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+                int firstWord = firstPageNum * WORDS_PER_PAGE;
+
+                for (int i = 0; i < chunk.length / 8; i++) {
+                    this.words[firstWord + i] = buffer.getLong();
+                }
+            }
         }
     }
 
@@ -39,7 +122,12 @@ public class FreeSpaceMap {
         assertState(fsmFileSize() % FSM_PAGE_SIZE == 0, "File consists of non integer number of pages");
     }
 
-    public void free(int pageNum) throws IOException {
+    public synchronized void free(int pageNum) throws IOException {
+        if (this.words != null) {
+            freeCached(pageNum);
+            return;
+        }
+
         int fsmPages = fsmPages();
 
         int fsmPageNum = fsmPageNum(pageNum);
@@ -57,9 +145,15 @@ public class FreeSpaceMap {
         fsmPage[fsmPageByte] &= ~bitMask;
 
         writeFsmPage(fsmPageNum, fsmPage);
+        this.notFullPages.set(fsmPageNum);
     }
 
-    public boolean isFree(int pageNum) throws IOException {
+    public synchronized boolean isFree(int pageNum) throws IOException {
+        if (this.words != null) {
+            // pages beyond the cached ones are free as well
+            return (pageNum >>> 6) >= this.words.length || (this.words[pageNum >>> 6] & (1L << pageNum)) == 0;
+        }
+
         int fsmPages = fsmPages();
 
         int fsmPageNum = fsmPageNum(pageNum);
@@ -77,7 +171,12 @@ public class FreeSpaceMap {
         return (fsmPage[fsmPageByte] & (1 << fsmByteBitNum)) == 0;
     }
 
-    public void take(int pageNum) throws IOException {
+    public synchronized void take(int pageNum) throws IOException {
+        if (this.words != null) {
+            takeCached(pageNum);
+            return;
+        }
+
         int fsmPages = fsmPages();
 
         int fsmPageNum = fsmPageNum(pageNum);
@@ -99,87 +198,338 @@ public class FreeSpaceMap {
 
             for (int newPageNum = fsmPages; newPageNum < fsmPageNum; newPageNum++) {
                 writeFsmPage(newPageNum, emptyPage);
+                this.notFullPages.set(newPageNum);
             }
 
             fsmPage = emptyPage;
         }
 
         fsmPage[fsmPageByte] |= bitMask;
+        this.highWaterMark = Math.max(this.highWaterMark, pageNum + 1);
         writeFsmPage(fsmPageNum, fsmPage);
+        updateSummary(fsmPageNum, fsmPage);
     }
 
-    public int takeFreePage() throws IOException {
+    /**
+     * Marks the first {@code count} pages as taken with a single sequential write, the FSM has to be empty.
+     */
+    public synchronized void takeFirst(int count) throws IOException {
+        assertEmpty();
+
+        if (this.words != null) {
+            for (int pageNum = 0; pageNum < count; pageNum++) {
+                takeCached(pageNum);
+            }
+
+            return;
+        }
+
+        int bitsPerPage = 8 * FSM_PAGE_SIZE;
+        byte[] pages = new byte[(count + bitsPerPage - 1) / bitsPerPage * FSM_PAGE_SIZE];
+
+        Arrays.fill(pages, 0, count / 8, FULL_BYTE);
+
+        if (count % 8 != 0) {
+            pages[count / 8] = (byte) ((1 << (count % 8)) - 1);
+        }
+
+        this.fsmStorage.write(0, pages);
+        this.highWaterMark = count;
+
+        for (int pageNum = 0; pageNum < pages.length / FSM_PAGE_SIZE; pageNum++) {
+            updateSummary(pageNum, Arrays.copyOfRange(pages, pageNum * FSM_PAGE_SIZE, (pageNum + 1) * FSM_PAGE_SIZE));
+        }
+    }
+
+    public synchronized int takeFreePage() throws IOException {
         int freePageNum = findFreePage();
         take(freePageNum);
 
         return freePageNum;
     }
 
-    // TODO: use this implementation instead of the above one
-    private int _takeFreePage() throws IOException {
-        final int fsmPages = fsmPages();
+    /**
+     * Finds and takes a free page in a single call, see {@link #allocate(int)}.
+     */
+    public synchronized int allocate() throws IOException {
+        return allocate(1);
+    }
 
-        for (int pageNum = 0; pageNum < fsmPages; pageNum++) {
-            byte[] page = readFsmPage(pageNum);
+    /**
+     * Finds and takes a run of adjacent free pages. The search starts from the page following the previous allocation
+     * (next-fit), so pages at the beginning of the FSM aren't rescanned each time. If there is no such run before the
+     * high-water mark, the holes before the cursor are checked and only then the run is placed at the high-water mark,
+     * so the pages are never allocated with a gap after the last taken one.
+     *
+     * @return number of the first page of the run
+     */
+    public synchronized int allocate(int count) throws IOException {
+        assertState(count > 0, "At least one page has to be allocated");
+
+        int firstPageNum = findFreeRun(this.cursor, count);
+
+        if (firstPageNum >= this.highWaterMark && this.cursor > 0) {
+            firstPageNum = findFreeRun(0, count);
+        }
 
-            for (int byteNum = 0; byteNum < page.length; byteNum++) {
-                if (page[byteNum] == FULL_BYTE) {
-                    continue;
-                }
+        for (int i = 0; i < count; i++) {
+            take(firstPageNum + i);
+        }
+
+        this.cursor = firstPageNum + count;
+
+        return firstPageNum;
+    }
+
+    /**
+     * @return the first page of a run of free pages starting at or after the given one,
+     * pages starting from the high-water mark are all free
+     */
+    private int findFreeRun(int fromPageNum, int count) throws IOException {
+        int start = fromPageNum;
 
-                int bitNum = lowestZeroBit(page[byteNum]);
+        while (true) {
+            int candidate = nextFreePage(start, this.highWaterMark);
 
-                page[byteNum] |= 1 << bitNum;
-                writeFsmPage(pageNum, page);
+            if (candidate < 0) {
+                return Math.max(start, this.highWaterMark);
+            }
+
+            int end = candidate + 1;
+            while (end < candidate + count && end < this.highWaterMark && isFree(end)) {
+                end++;
+            }
 
-                return composePageNumber(bitNum, byteNum, pageNum);
+            if (end == candidate + count || end >= this.highWaterMark) {
+                return candidate;
             }
+
+            // page 'end' is taken
+            start = end + 1;
         }
+    }
 
-        // add a new page
-        byte[] newPage = emptyFsmPage();
+    /**
+     * @return the first free page in the range or -1 if all of them are taken
+     */
+    private int nextFreePage(int fromPageNum, int toPageNum) throws IOException {
+        int fsmPageNum = this.notFullPages.nextSetBit(fsmPageNum(fromPageNum));
 
-        // set the least significant bit to 1 (to indicate that page isn't free)
-        newPage[0] = 1;
-        writeFsmPage(fsmPages, newPage);
+        while (fsmPageNum >= 0 && composePageNumber(0, 0, fsmPageNum) < toPageNum) {
+            int pageNum = firstFreeBit(fsmPageNum, Math.max(fromPageNum, composePageNumber(0, 0, fsmPageNum)));
+
+            if (pageNum >= 0) {
+                return pageNum < toPageNum ? pageNum : -1;
+            }
+
+            fsmPageNum = this.notFullPages.nextSetBit(fsmPageNum + 1);
+        }
 
-        return composePageNumber(0, 0, fsmPages);
+        return -1;
     }
 
-    // The same as above but doesn't modify any bits and doesn't add any pages
-    public int findFreePage() throws IOException {
-        final int fsmPages = fsmPages();
+    /**
+     * @return the first free page of the FSM page starting from the given one or -1
+     */
+    private int firstFreeBit(int fsmPageNum, int fromPageNum) throws IOException {
+        final int endPageNum = composePageNumber(0, 0, fsmPageNum + 1);
 
-        for (int pageNum = 0; pageNum < fsmPages; pageNum++) {
-            byte[] page = readFsmPage(pageNum);
+        if (this.words != null) {
+            for (int i = fromPageNum >>> 6; i < endPageNum >>> 6; i++) {
+                long freeBits = ~this.words[i];
 
-            for (int byteNum = 0; byteNum < page.length; byteNum++) {
-                if (page[byteNum] == FULL_BYTE) {
-                    continue;
+                if (i == fromPageNum >>> 6) {
+                    freeBits &= -1L << fromPageNum;
                 }
 
-                int bitNum = lowestZeroBit(page[byteNum]);
-                return composePageNumber(bitNum, byteNum, pageNum);
+                if (freeBits != 0) {
+                    return i * 64 + Long.numberOfTrailingZeros(freeBits);
+                }
+            }
+
+            return -1;
+        }
+
+        byte[] page = readFsmPage(fsmPageNum);
+
+        for (int pageNum = fromPageNum; pageNum < endPageNum; pageNum++) {
+            int fsmPageBitNum = fsmPageBitNum(pageNum);
+
+            if ((page[fsmPageByte(fsmPageBitNum)] & (1 << fsmByteBitNum(fsmPageBitNum))) == 0) {
+                return pageNum;
             }
         }
 
-        return composePageNumber(0, 0, fsmPages);
+        return -1;
+    }
+
+    // Finds the first free page but doesn't modify any bits and doesn't add any pages
+    public synchronized int findFreePage() throws IOException {
+        // the summary points right to the page which has a free bit, so only this page is read
+        int pageNum = this.notFullPages.nextSetBit(0);
+
+        if (pageNum < 0) {
+            return composePageNumber(0, 0, fsmPages());
+        }
+
+        if (this.words != null) {
+            for (int i = pageNum * WORDS_PER_PAGE; i < (pageNum + 1) * WORDS_PER_PAGE; i++) {
+                if (this.words[i] != -1L) {
+                    return i * 64 + Long.numberOfTrailingZeros(~this.words[i]);
+                }
+            }
+        }
+
+        byte[] page = readFsmPage(pageNum);
+
+        for (int byteNum = 0; byteNum < page.length; byteNum++) {
+            if (page[byteNum] != FULL_BYTE) {
+                return composePageNumber(lowestZeroBit(page[byteNum]), byteNum, pageNum);
+            }
+        }
+
+        throw new IllegalStateException("FSM page " + pageNum + " is full, but the summary says otherwise");
+    }
+
+    private void updateSummary(int pageNum, byte[] page) {
+        if (isFull(page, 0)) {
+            this.notFullPages.clear(pageNum);
+        } else {
+            this.notFullPages.set(pageNum);
+        }
+    }
+
+    private static boolean isFull(byte[] pages, int pageOffset) {
+        for (int i = pageOffset; i < pageOffset + FSM_PAGE_SIZE; i++) {
+            if (pages[i] != FULL_BYTE) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     private int fsmPages() throws IOException {
+        if (this.words != null) {
+            return this.cachedPages;
+        }
+
         return (int) (fsmFileSize() / FSM_PAGE_SIZE);
     }
 
     private long fsmFileSize() throws IOException {
-        return this.fsmChannel.size();
+        return this.fsmStorage.size();
     }
 
     private byte[] readFsmPage(int pageNum) throws IOException {
-        return Utils.read(this.fsmChannel, fsmPageOffset(pageNum), FSM_PAGE_SIZE);
+        return this.fsmStorage.read(fsmPageOffset(pageNum), FSM_PAGE_SIZE);
     }
 
     private void writeFsmPage(int pageNum, byte[] page) throws IOException {
-        Utils.write(this.fsmChannel, fsmPageOffset(pageNum), page);
+        this.fsmStorage.write(fsmPageOffset(pageNum), page);
+    }
+
+    public synchronized void sync() throws IOException {
+        flush();
+        this.fsmStorage.sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        this.fsmStorage.close();
+    }
+
+    /* -------------------- Cached mode -------------------- */
+
+    private static final int WORDS_PER_PAGE = FSM_PAGE_SIZE / 8;
+
+    /**
+     * Writes the FSM pages modified since the last flush to the storage, runs of adjacent pages are written at once.
+     * Does nothing if the FSM isn't cached.
+     */
+    public synchronized void flush() throws IOException {
+        if (this.words == null) {
+            return;
+        }
+
+        int firstPageNum = this.dirtyPages.nextSetBit(0);
+
+        while (firstPageNum >= 0) {
+            int endPageNum = firstPageNum;
+
+            while (this.dirtyPages.get(endPageNum)) {
+                this.dirtyPages.clear(endPageNum);
+                endPageNum++;
+            }
+
+            ByteBuffer pages = ByteBuffer.allocate((endPageNum - firstPageNum) * FSM_PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = firstPageNum * WORDS_PER_PAGE; i < endPageNum * WORDS_PER_PAGE; i++) {
+                pages.putLong(this.words[i]);
+            }
+
+            writeFsmPage(firstPageNum, pages.array());
+
+            firstPageNum = this.dirtyPages.nextSetBit(endPageNum);
+        }
+    }
+
+    private void takeCached(int pageNum) {
+        int fsmPageNum = fsmPageNum(pageNum);
+
+        if (fsmPageNum >= this.cachedPages) {
+            // intermediary pages are created as well, they have to be written too
+            int newPages = fsmPageNum + 1;
+
+            if (newPages * WORDS_PER_PAGE > this.words.length) {
+                this.words = Arrays.copyOf(this.words, Math.max(newPages, 2 * this.cachedPages) * WORDS_PER_PAGE);
+            }
+
+            for (int newPageNum = this.cachedPages; newPageNum < newPages; newPageNum++) {
+                this.notFullPages.set(newPageNum);
+                this.dirtyPages.set(newPageNum);
+            }
+
+            this.cachedPages = newPages;
+        }
+
+        long bitMask = 1L << pageNum;
+        int wordNum = pageNum >>> 6;
+
+        assertState((this.words[wordNum] & bitMask) == 0, "Requested page isn't free");
+
+        this.words[wordNum] |= bitMask;
+        this.highWaterMark = Math.max(this.highWaterMark, pageNum + 1);
+        this.dirtyPages.set(fsmPageNum);
+
+        if (isFullCached(fsmPageNum)) {
+            this.notFullPages.clear(fsmPageNum);
+        }
+    }
+
+    private void freeCached(int pageNum) {
+        int fsmPageNum = fsmPageNum(pageNum);
+
+        assertState(fsmPageNum < this.cachedPages, "Unallocated page can't be freed");
+
+        long bitMask = 1L << pageNum;
+        int wordNum = pageNum >>> 6;
+
+        assertState((this.words[wordNum] & bitMask) != 0, "Page is already free");
+
+        this.words[wordNum] &= ~bitMask;
+        this.dirtyPages.set(fsmPageNum);
+        this.notFullPages.set(fsmPageNum);
+    }
+
+    private boolean isFullCached(int fsmPageNum) {
+        for (int i = fsmPageNum * WORDS_PER_PAGE; i < (fsmPageNum + 1) * WORDS_PER_PAGE; i++) {
+            if (this.words[i] != -1L) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     private static byte[] emptyFsmPage() {
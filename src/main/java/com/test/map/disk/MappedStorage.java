@@ -0,0 +1,174 @@
+package com.test.map.disk;
+
+import com.test.map.offheap.UnsafeUtil;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static com.test.map.disk.Utils.assertState;
+
+/**
+ * {@link Storage} which maps the file into memory with {@link FileChannel#map}, so a page access is just
+ * a copy between the mapping and an array, without any system calls.
+ * <p>
+ * The file is mapped in fixed size chunks, a new chunk is mapped when a write goes beyond the mapped region.
+ * Mapping extends the file, so while the storage is open the file is padded with zeros up to a chunk boundary.
+ * Logical size is tracked separately and the file is truncated to it on {@link #close()}.
+ * <p>
+ * Reads don't take any locks, writes are serialized since they may map new chunks.
+ */
+public class MappedStorage implements Storage {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private static final MappedByteBuffer[] NO_CHUNKS = new MappedByteBuffer[0];
+
+    private final FileChannel channel;
+    private final int chunkBits;
+    private final int chunkSize;
+
+    // replaced as a whole when new chunks are mapped, so a reader always sees a consistent array
+    private volatile MappedByteBuffer[] chunks = NO_CHUNKS;
+    private volatile long size;
+
+    public MappedStorage(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_CHUNK_SIZE);
+    }
+
+    public MappedStorage(FileChannel channel, int chunkSize) throws IOException {
+        assertState(chunkSize > 0 && Integer.bitCount(chunkSize) == 1, "Chunk size must be a power of two");
+
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+        this.chunkBits = Integer.numberOfTrailingZeros(chunkSize);
+        this.size = channel.size();
+
+        ensureMapped(this.size);
+    }
+
+    public static MappedStorage open(Path path) throws IOException {
+        return new MappedStorage(Utils.openRWChannel(path));
+    }
+
+    public static MappedStorage open(Path path, int chunkSize) throws IOException {
+        return new MappedStorage(Utils.openRWChannel(path), chunkSize);
+    }
+
+    @Override
+    public byte[] read(long offset, int length) throws IOException {
+        assertState(offset >= 0 && offset + length <= this.size, "Can't read required number of bytes from the storage");
+
+        byte[] result = new byte[length];
+        transfer(this.chunks, offset, result, true);
+
+        return result;
+    }
+
+    @Override
+    public synchronized void write(long offset, byte[] data) throws IOException {
+        long end = offset + data.length;
+
+        ensureMapped(end);
+        transfer(this.chunks, offset, data, false);
+
+        this.size = Math.max(this.size, end);
+    }
+
+    @Override
+    public long size() {
+        return this.size;
+    }
+
+    @Override
+    public void sync() {
+        for (MappedByteBuffer chunk : this.chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        MappedByteBuffer[] chunks = this.chunks;
+        this.chunks = NO_CHUNKS;
+
+        // some platforms don't allow to truncate a file while it's mapped
+        for (MappedByteBuffer chunk : chunks) {
+            unmap(chunk);
+        }
+
+        this.channel.truncate(this.size);
+        this.channel.close();
+    }
+
+    /**
+     * Copies bytes between the array and the mappings, the range may span several chunks.
+     */
+    private void transfer(MappedByteBuffer[] chunks, long offset, byte[] array, boolean read) {
+        int done = 0;
+
+        while (done < array.length) {
+            long position = offset + done;
+
+            int chunkOffset = (int) (position & (this.chunkSize - 1));
+            int length = Math.min(array.length - done, this.chunkSize - chunkOffset);
+
+            // a view has its own position, so the chunk itself is never modified
+            ByteBuffer view = chunks[(int) (position >>> this.chunkBits)].duplicate();
+            view.position(chunkOffset);
+
+            if (read) {
+                view.get(array, done, length);
+            } else {
+                view.put(array, done, length);
+            }
+
+            done += length;
+        }
+    }
+
+    private void ensureMapped(long end) throws IOException {
+        int chunksNeeded = (int) ((end + this.chunkSize - 1) >>> this.chunkBits);
+        int chunksMapped = this.chunks.length;
+
+        if (chunksNeeded <= chunksMapped) {
+            return;
+        }
+
+        MappedByteBuffer[] chunks = Arrays.copyOf(this.chunks, chunksNeeded);
+
+        for (int i = chunksMapped; i < chunksNeeded; i++) {
+            chunks[i] = this.channel.map(FileChannel.MapMode.READ_WRITE, (long) i * this.chunkSize, this.chunkSize);
+        }
+
+        this.chunks = chunks;
+    }
+
+    /**
+     * Releases the mapping immediately instead of waiting for the buffer to be garbage collected.
+     * There is no public API for that, so it's done through the JDK internals and silently skipped if they aren't accessible.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                // Java 9+
+                Method invokeCleaner = Unsafe.class.getMethod("invokeCleaner", ByteBuffer.class);
+                invokeCleaner.invoke(UnsafeUtil.getUnsafe(), buffer);
+            } catch (NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the mapping will be released when the buffer is collected
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package com.test.map.disk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static com.test.map.disk.Utils.assertState;
+
+/**
+ * Bounded pool of page frames between the {@link DiskHahMap} and its data storage.
+ * <p>
+ * A page has to be pinned while its frame is accessed, pinned pages are never evicted. Modified pages are
+ * marked dirty upon unpinning and are written back to the storage only when they are evicted or flushed,
+ * so until {@link #flush()} the storage may lag behind the cache (and even be shorter than the number of pages).
+ * <p>
+ * Thread-safe: frames are managed under the cache's monitor, but a missing page is read from the storage without
+ * holding it. The frame is reserved and marked as loading beforehand, other pinners of the page wait on the frame
+ * itself until the read completes. Content of a pinned frame is accessed without any locking, so the caller has to
+ * make sure that a page isn't modified while it's read by another thread, and that nothing is modified while the
+ * cache is flushed.
+ */
+class PageCache {
+
+    // adjacent pages are prefetched with a single read of at most this size
+    private static final int MAX_PREFETCH_READ = 1024 * 1024;
+
+    // page number of a frame whose page failed to load
+    private static final int NO_PAGE = -1;
+
+    private final Storage storage;
+    private final long firstPageOffset;
+    private final int pageSize;
+
+    private final EvictionPolicy evictionPolicy;
+    private final Frame[] frames;
+    private final Map<Integer, Frame> pageTable;
+    private int usedFrames;
+    private int pinnedFrames;
+
+    // frames dirtied since the last flush, some of them may have been written back upon eviction already
+    private final List<Frame> dirtyFrames = new ArrayList<>();
+
+    // CLOCK: index of the next frame to check
+    private int clockHand;
+
+    // LRU: list of the frames from the least to the most recently used one
+    private Frame lruHead;
+    private Frame lruTail;
+
+    // number of pages including the ones which haven't been written to the storage yet
+    private int numPages;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    PageCache(Storage storage, long firstPageOffset, int pageSize, int capacity, EvictionPolicy evictionPolicy) throws IOException {
+        this.storage = storage;
+        this.firstPageOffset = firstPageOffset;
+        this.pageSize = pageSize;
+        this.evictionPolicy = evictionPolicy;
+        this.frames = new Frame[capacity];
+        this.pageTable = new HashMap<>(capacity * 4 / 3 + 1);
+        this.numPages = (int) (Math.max(0, storage.size() - firstPageOffset) / pageSize);
+    }
+
+    /**
+     * Pins an existing page reading it from the storage if it isn't cached.
+     */
+    Frame pin(int pageNum) throws IOException {
+        while (true) {
+            Frame frame;
+            boolean load;
+
+            synchronized (this) {
+                assertState(pageNum >= 0 && pageNum < this.numPages, "Can't read not existing page");
+
+                frame = awaitFrame(pageNum);
+                load = frame == null;
+
+                if (!load) {
+                    this.hits++;
+                    pinFrame(frame);
+                } else {
+                    this.misses++;
+                    frame = pinFrame(reserveFrame(pageNum));
+                }
+            }
+
+            if (load) {
+                byte[] data;
+
+                try {
+                    data = this.storage.read(pageOffset(pageNum), this.pageSize);
+                } catch (IOException | RuntimeException e) {
+                    discardFrame(frame);
+                    throw e;
+                }
+
+                publish(frame, data);
+                return frame;
+            }
+
+            // if the page failed to load in another thread, it's read once again
+            if (awaitLoaded(frame)) {
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * Pins a page which is going to be overwritten entirely, so its current content (if any) isn't read.
+     * The page may not exist yet, in this case the content of the frame is zeroed.
+     */
+    Frame pinForOverwrite(int pageNum) throws IOException {
+        while (true) {
+            Frame frame;
+
+            synchronized (this) {
+                frame = awaitFrame(pageNum);
+
+                if (frame == null) {
+                    frame = assignFrame(pageNum);
+                    frame.data = new byte[this.pageSize];
+                }
+
+                this.numPages = Math.max(this.numPages, pageNum + 1);
+
+                pinFrame(frame);
+            }
+
+            // the page may be still loading, its content must not be overwritten by the read
+            if (awaitLoaded(frame)) {
+                return frame;
+            }
+        }
+    }
+
+    /**
+     * Reads a copy of the page without blocking if it isn't cached, see {@link Storage#readAsync}. The caller has to
+     * make sure that the page isn't modified until the read completes.
+     *
+     * @param cache whether to put the page into the cache once it's read
+     */
+    CompletableFuture<byte[]> readAsync(int pageNum, boolean cache) {
+        synchronized (this) {
+            assertState(pageNum >= 0 && pageNum < this.numPages, "Can't read not existing page");
+
+            Frame frame = this.pageTable.get(pageNum);
+
+            // a page which is still loading is read once again rather than waited for
+            if (frame != null && !frame.loading) {
+                this.hits++;
+                touchFrame(frame);
+
+                return CompletableFuture.completedFuture(frame.data.clone());
+            }
+
+            this.misses++;
+        }
+
+        CompletableFuture<byte[]> page = this.storage.readAsync(pageOffset(pageNum), this.pageSize);
+
+        return !cache ? page : page.thenApply(data -> {
+            cacheIfAbsent(pageNum, data);
+            return data;
+        });
+    }
+
+    private synchronized void cacheIfAbsent(int pageNum, byte[] data) {
+        // the page may have been read by someone else in the meantime, and there is no point in waiting for a frame
+        if (this.pageTable.containsKey(pageNum) || !hasFreeFrame()) {
+            return;
+        }
+
+        try {
+            assignFrame(pageNum).data = data.clone();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the pages which aren't cached yet, adjacent ones with a single read of the storage, so the pages have
+     * to be sorted by their numbers. Prefetching stops early if all the frames are pinned.
+     */
+    void prefetch(List<Integer> pageNums) throws IOException {
+        final int maxRun = Math.max(1, MAX_PREFETCH_READ / this.pageSize);
+        int i = 0;
+
+        while (i < pageNums.size()) {
+            final int firstPageNum = pageNums.get(i);
+            final Frame[] run;
+            int count = 1;
+            int reserved = 0;
+
+            synchronized (this) {
+                assertState(firstPageNum >= 0 && firstPageNum < this.numPages, "Can't read not existing page");
+
+                if (this.pageTable.containsKey(firstPageNum)) {
+                    i++;
+                    continue;
+                }
+
+                while (count < maxRun && i + count < pageNums.size()
+                        && pageNums.get(i + count) == firstPageNum + count
+                        && !this.pageTable.containsKey(firstPageNum + count)) {
+                    count++;
+                }
+
+                // frames of the run stay pinned while it's read, so they can't be evicted in the meantime
+                run = new Frame[count];
+                while (reserved < count && hasFreeFrame()) {
+                    run[reserved] = pinFrame(reserveFrame(firstPageNum + reserved));
+                    reserved++;
+                }
+
+                this.misses += reserved;
+            }
+
+            if (reserved == 0) {
+                return;
+            }
+
+            byte[] pages;
+
+            try {
+                pages = this.storage.read(pageOffset(firstPageNum), reserved * this.pageSize);
+            } catch (IOException | RuntimeException e) {
+                for (int p = 0; p < reserved; p++) {
+                    discardFrame(run[p]);
+                }
+
+                throw e;
+            }
+
+            for (int p = 0; p < reserved; p++) {
+                publish(run[p], Arrays.copyOfRange(pages, p * this.pageSize, (p + 1) * this.pageSize));
+
+                // prefetched pages are about to be used, pinning has made them the last candidates for eviction
+                unpin(run[p], false);
+            }
+
+            if (reserved < count) {
+                return;
+            }
+
+            i += count;
+        }
+    }
+
+    synchronized void unpin(Frame frame, boolean dirty) {
+        assertState(frame.pinCount > 0, "Page isn't pinned");
+
+        frame.pinCount--;
+
+        if (frame.pinCount == 0 && this.pinnedFrames-- == this.frames.length) {
+            notifyAll();
+        }
+
+        if (dirty && !frame.inDirtyList) {
+            frame.inDirtyList = true;
+            this.dirtyFrames.add(frame);
+        }
+
+        frame.dirty |= dirty;
+    }
+
+    /**
+     * Writes all the dirty pages to the storage in the order of their numbers.
+     * Only the frames dirtied since the last flush are checked, so flushing after each operation is cheap.
+     */
+    synchronized void flush() throws IOException {
+        List<Frame> dirtyFrames = new ArrayList<>();
+
+        for (Frame frame : this.dirtyFrames) {
+            frame.inDirtyList = false;
+
+            if (frame.dirty) {
+                dirtyFrames.add(frame);
+            }
+        }
+
+        this.dirtyFrames.clear();
+
+        dirtyFrames.sort((f1, f2) -> Integer.compare(f1.pageNum, f2.pageNum));
+
+        for (Frame frame : dirtyFrames) {
+            writeBack(frame);
+        }
+    }
+
+    int capacity() {
+        return this.frames.length;
+    }
+
+    synchronized int numPages() {
+        return this.numPages;
+    }
+
+    synchronized PageCacheStats stats() {
+        return new PageCacheStats(this.frames.length, this.hits, this.misses, this.evictions, this.writeBacks);
+    }
+
+    /* -------------------- Frames management -------------------- */
+
+    /**
+     * Waits until either the page is cached or there is a frame which can be assigned to it. Each thread pins
+     * at most one page at a time (prefetching pins more, but only the free frames, and doesn't wait for them),
+     * so all the frames are pinned only if there are more threads than frames.
+     *
+     * @return frame of the page or null if it isn't cached
+     */
+    private Frame awaitFrame(int pageNum) throws IOException {
+        Frame frame;
+
+        while ((frame = this.pageTable.get(pageNum)) == null && !hasFreeFrame()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a free frame");
+            }
+        }
+
+        return frame;
+    }
+
+    private boolean hasFreeFrame() {
+        return this.usedFrames < this.frames.length || this.pinnedFrames < this.frames.length;
+    }
+
+    private Frame pinFrame(Frame frame) {
+        if (frame.pinCount++ == 0) {
+            this.pinnedFrames++;
+        }
+
+        touchFrame(frame);
+
+        return frame;
+    }
+
+    private void touchFrame(Frame frame) {
+        if (this.evictionPolicy == EvictionPolicy.CLOCK) {
+            frame.referenced = true;
+        } else {
+            moveToTail(frame);
+        }
+    }
+
+    /**
+     * Assigns a frame to the page which is going to be read outside of the cache's monitor.
+     */
+    private Frame reserveFrame(int pageNum) throws IOException {
+        Frame frame = assignFrame(pageNum);
+
+        frame.data = null;
+        frame.loading = true;
+
+        return frame;
+    }
+
+    /**
+     * Publishes content of the loaded page to the threads waiting for it, null content means that the read failed.
+     */
+    private static void publish(Frame frame, byte[] data) {
+        synchronized (frame) {
+            frame.data = data;
+            frame.loading = false;
+            frame.notifyAll();
+        }
+    }
+
+    /**
+     * Unmaps the page which failed to load, so it's read from scratch next time, and unpins its frame.
+     */
+    private void discardFrame(Frame frame) {
+        synchronized (this) {
+            this.pageTable.remove(frame.pageNum);
+            frame.pageNum = NO_PAGE;
+        }
+
+        publish(frame, null);
+        unpin(frame, false);
+    }
+
+    /**
+     * Waits until the page of the pinned frame is loaded by another thread.
+     *
+     * @return false if the page failed to load, the frame is unpinned in this case
+     */
+    private boolean awaitLoaded(Frame frame) throws InterruptedIOException {
+        if (frame.loading) {
+            try {
+                synchronized (frame) {
+                    while (frame.loading) {
+                        frame.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                unpin(frame, false);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the page to be read");
+            }
+        }
+
+        if (frame.data == null) {
+            unpin(frame, false);
+            return false;
+        }
+
+        return true;
+    }
+
+    private Frame assignFrame(int pageNum) throws IOException {
+        Frame frame;
+
+        if (this.usedFrames < this.frames.length) {
+            frame = new Frame();
+            this.frames[this.usedFrames++] = frame;
+        } else {
+            frame = selectVictim();
+
+            if (frame.dirty) {
+                writeBack(frame);
+            }
+
+            this.pageTable.remove(frame.pageNum);
+            this.evictions++;
+        }
+
+        frame.pageNum = pageNum;
+        frame.referenced = false;
+        this.pageTable.put(pageNum, frame);
+
+        return frame;
+    }
+
+    private Frame selectVictim() {
+        if (this.evictionPolicy == EvictionPolicy.LRU) {
+            for (Frame frame = this.lruHead; frame != null; frame = frame.next) {
+                if (frame.pinCount == 0) {
+                    return frame;
+                }
+            }
+        } else {
+            // the first round may only clear reference flags, so two rounds are enough to find a victim if there is one
+            for (int i = 0; i < 2 * this.frames.length; i++) {
+                Frame frame = this.frames[this.clockHand];
+                this.clockHand = (this.clockHand + 1) % this.frames.length;
+
+                if (frame.pinCount > 0) {
+                    continue;
+                }
+
+                if (frame.referenced) {
+                    frame.referenced = false;
+                } else {
+                    return frame;
+                }
+            }
+        }
+
+        throw new IllegalStateException("All the pages of the cache are pinned");
+    }
+
+    private void moveToTail(Frame frame) {
+        if (this.lruTail == frame) {
+            return;
+        }
+
+        // unlink, if the frame is in the list at all
+        if (frame.prev != null) {
+            frame.prev.next = frame.next;
+        } else if (this.lruHead == frame) {
+            this.lruHead = frame.next;
+        }
+
+        if (frame.next != null) {
+            frame.next.prev = frame.prev;
+        }
+
+        // link as the most recently used one
+        frame.prev = this.lruTail;
+        frame.next = null;
+
+        if (this.lruTail != null) {
+            this.lruTail.next = frame;
+        } else {
+            this.lruHead = frame;
+        }
+
+        this.lruTail = frame;
+    }
+
+    private void writeBack(Frame frame) throws IOException {
+        this.storage.write(pageOffset(frame.pageNum), frame.data);
+
+        frame.dirty = false;
+        this.writeBacks++;
+    }
+
+    private long pageOffset(int pageNum) {
+        return this.firstPageOffset + (long) pageNum * this.pageSize;
+    }
+
+    static class Frame {
+
+        int pageNum;
+        byte[] data;
+
+        int pinCount;
+        boolean dirty;
+
+        // the page is being read from the storage, its pinners wait on the frame until it's published
+        volatile boolean loading;
+        boolean inDirtyList;
+
+        // CLOCK: the page has been accessed since the hand passed it last time
+        boolean referenced;
+
+        // LRU list links
+        Frame prev;
+        Frame next;
+    }
+}
@@ -0,0 +1,59 @@
+package com.test.map.disk;
+
+/**
+ * Snapshot of the {@link PageCache} counters. Pages which are created from scratch
+ * (without reading them from the storage) are counted neither as hits nor as misses.
+ */
+public class PageCacheStats {
+
+    private final int capacity;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long writeBacks;
+
+    public PageCacheStats(int capacity, long hits, long misses, long evictions, long writeBacks) {
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.writeBacks = writeBacks;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of dirty pages written to the storage, either upon eviction or upon flush
+     */
+    public long getWriteBacks() {
+        return writeBacks;
+    }
+
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "capacity: " + capacity +
+                ", hits: " + hits +
+                ", misses: " + misses +
+                ", evictions: " + evictions +
+                ", write-backs: " + writeBacks;
+    }
+}
@@ -0,0 +1,42 @@
+package com.test.map.disk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Byte addressable storage behind a {@link DiskHahMap} or a {@link FreeSpaceMap}.
+ */
+public interface Storage extends Closeable {
+
+    byte[] read(long offset, int length) throws IOException;
+
+    /**
+     * Reads without blocking the calling thread if the storage supports it,
+     * the default implementation just performs a synchronous read.
+     */
+    default CompletableFuture<byte[]> readAsync(long offset, int length) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        try {
+            result.complete(read(offset, length));
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes the data at the given offset, growing the storage if needed.
+     * Gap between the current end of the storage and the offset (if any) is filled with zeros.
+     */
+    void write(long offset, byte[] data) throws IOException;
+
+    long size() throws IOException;
+
+    /**
+     * Forces all the written data to the underlying device.
+     */
+    void sync() throws IOException;
+}
@@ -0,0 +1,136 @@
+package com.test.map.disk;
+
+import java.util.Arrays;
+
+/**
+ * Growable bitmap with a summary tree on top of it: each bit of an upper level shows whether the corresponding word
+ * of the level below has any bit set. The next set bit is found by checking about one word per level,
+ * so it takes O(log64 n) instead of a scan of the whole bitmap.
+ * <p>
+ * Not thread-safe.
+ */
+class SummaryBitmap {
+
+    private static final int WORD_BITS = 64;
+    private static final int WORD_SHIFT = 6;
+
+    // levels[0] holds the bits themselves, the last level consists of a single word
+    private long[][] levels = {new long[1]};
+
+    boolean get(int index) {
+        int wordIndex = index >>> WORD_SHIFT;
+        long[] bits = this.levels[0];
+
+        return wordIndex < bits.length && (bits[wordIndex] & (1L << index)) != 0;
+    }
+
+    void set(int index) {
+        ensureCapacity(index + 1);
+
+        for (int level = 0; level < this.levels.length; level++) {
+            int wordIndex = index >>> WORD_SHIFT;
+            long word = this.levels[level][wordIndex];
+
+            this.levels[level][wordIndex] = word | (1L << index);
+
+            if (word != 0) {
+                // upper levels already know that this word isn't empty
+                return;
+            }
+
+            index = wordIndex;
+        }
+    }
+
+    void clear(int index) {
+        if (index >>> WORD_SHIFT >= this.levels[0].length) {
+            return;
+        }
+
+        for (int level = 0; level < this.levels.length; level++) {
+            int wordIndex = index >>> WORD_SHIFT;
+            long word = this.levels[level][wordIndex] & ~(1L << index);
+
+            this.levels[level][wordIndex] = word;
+
+            if (word != 0) {
+                return;
+            }
+
+            index = wordIndex;
+        }
+    }
+
+    /**
+     * @return index of the first set bit starting from the given one or -1 if there is no such bit
+     */
+    int nextSetBit(int from) {
+        int level = 0;
+        int index = from;
+
+        // go up until a word which has a set bit at or after the index is found
+        while (true) {
+            if (level == this.levels.length) {
+                return -1;
+            }
+
+            int wordIndex = index >>> WORD_SHIFT;
+            if (wordIndex >= this.levels[level].length) {
+                return -1;
+            }
+
+            long word = this.levels[level][wordIndex] & (-1L << index);
+
+            if (word != 0) {
+                index = (wordIndex << WORD_SHIFT) + Long.numberOfTrailingZeros(word);
+                break;
+            }
+
+            // the rest of the word is empty, continue with the next words at the upper level
+            index = wordIndex + 1;
+            level++;
+        }
+
+        // go down following the first set bits
+        while (level > 0) {
+            level--;
+            index = (index << WORD_SHIFT) + Long.numberOfTrailingZeros(this.levels[level][index]);
+        }
+
+        return index;
+    }
+
+    private void ensureCapacity(int bits) {
+        int words = (bits + WORD_BITS - 1) >>> WORD_SHIFT;
+
+        if (words <= this.levels[0].length) {
+            return;
+        }
+
+        long[] bottom = Arrays.copyOf(this.levels[0], Math.max(words, 2 * this.levels[0].length));
+
+        // upper levels are rebuilt from scratch, it's amortized by the doubling of the bottom one
+        int levelsNum = 1;
+        for (int size = bottom.length; size > 1; size = (size + WORD_BITS - 1) >>> WORD_SHIFT) {
+            levelsNum++;
+        }
+
+        long[][] levels = new long[levelsNum][];
+        levels[0] = bottom;
+
+        for (int level = 1; level < levelsNum; level++) {
+            long[] lower = levels[level - 1];
+            long[] upper = new long[(lower.length + WORD_BITS - 1) >>> WORD_SHIFT];
+
+            for (int i = 0; i < lower.length; i++) {
+                if (lower[i] != 0) {
+                    upper[i >>> WORD_SHIFT] |= 1L << i;
+                }
+            }
+
+            levels[level] = upper;
+        }
+
+        this.levels = levels;
+    }
+}
@@ -24,17 +24,45 @@ public abstract class Utils {
         file.write(data);
     }
 
+    /**
+     * File channels are written with the positional writes, which don't touch the position of the channel,
+     * so concurrent accesses don't interfere. Other channels are locked for the duration of the write.
+     */
     public static void write(SeekableByteChannel channel, long offset, byte[] data) throws IOException {
-        channel.position(offset);
-        channel.write(ByteBuffer.wrap(data));
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        if (channel instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) channel;
+
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer, offset + buffer.position());
+            }
+
+            return;
+        }
+
+        synchronized (channel) {
+            channel.position(offset);
+            channel.write(buffer);
+        }
     }
 
+    /**
+     * Same as {@link #write(SeekableByteChannel, long, byte[])}, file channels are read with the positional reads.
+     */
     public static byte[] read(SeekableByteChannel channel, long offset, int length) throws IOException {
         byte[] result = new byte[length];
         ByteBuffer buffer = ByteBuffer.wrap(result);
 
-        channel.position(offset);
-        while (channel.read(buffer) != -1 && buffer.hasRemaining()) ;
+        if (channel instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) channel;
+            while (fileChannel.read(buffer, offset + buffer.position()) != -1 && buffer.hasRemaining()) ;
+        } else {
+            synchronized (channel) {
+                channel.position(offset);
+                while (channel.read(buffer) != -1 && buffer.hasRemaining()) ;
+            }
+        }
 
         assertState(!buffer.hasRemaining(), "Can't read required number of bytes from the channel");
 
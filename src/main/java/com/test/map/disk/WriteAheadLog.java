@@ -0,0 +1,377 @@
+package com.test.map.disk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static com.test.map.disk.Utils.assertState;
+
+/**
+ * Redo log which makes modifications of a {@link DiskHahMap} atomic and durable without syncing its data and FSM
+ * storages after each operation.
+ * <p>
+ * Storages are attached to the log and accessed only through the returned decorators afterwards. A write to
+ * a decorator is appended to the log and kept in the decorator's memory overlay, the target storage isn't touched
+ * until the next checkpoint, so it always holds the state as of the last checkpoint. Writes between two
+ * {@link #commit()} calls form a transaction, which is replayed upon recovery only if its commit record reached the log.
+ * <p>
+ * Records are buffered in memory and the log is written and synced once per group of commits (or upon {@link #sync()}),
+ * so a crash may lose the latest transactions but never leaves them partially applied.
+ * <p>
+ * Log layout: epoch (8 bytes) followed by the records. Each checkpoint increments the epoch, so the records
+ * of the previous epochs are ignored and the log doesn't have to be truncated.
+ * <p>
+ * Record layout: epoch (8), type (1), storage id (1), offset (8), data length (4), data, CRC32 of the previous fields (4).
+ * <p>
+ * Thread-safe: all the operations, including the accesses to the decorators, are serialized by the log's monitor.
+ */
+class WriteAheadLog implements Closeable {
+
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8 + 1 + 1 + 8 + 4;
+    private static final int CHECKSUM_SIZE = 4;
+
+    private static final byte WRITE_RECORD = 1;
+    private static final byte COMMIT_RECORD = 2;
+
+    private final Storage logStorage;
+    private final int groupCommitSize;
+    private final long checkpointSize;
+
+    private final List<LoggedStorage> storages = new ArrayList<>();
+
+    private long epoch;
+    // end of the records already written to the log storage
+    private long logEnd = HEADER_SIZE;
+
+    // records which haven't been written to the log storage yet
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private int pendingCommits;
+
+    WriteAheadLog(Storage logStorage, int groupCommitSize, long checkpointSize) throws IOException {
+        this.logStorage = logStorage;
+        this.groupCommitSize = groupCommitSize;
+        this.checkpointSize = checkpointSize;
+
+        if (logStorage.size() >= HEADER_SIZE) {
+            this.epoch = ByteBuffer.wrap(logStorage.read(0, HEADER_SIZE)).getLong();
+        } else {
+            writeHeader();
+        }
+    }
+
+    /**
+     * @return decorator which has to be used for all the accesses to the storage from now on
+     */
+    synchronized Storage attach(Storage target) throws IOException {
+        assertState(this.storages.size() < Byte.MAX_VALUE, "Too many storages are attached to the log");
+
+        LoggedStorage storage = new LoggedStorage((byte) this.storages.size(), target);
+        this.storages.add(storage);
+
+        return storage;
+    }
+
+    /**
+     * Marks the end of a transaction. The log is synced if enough commits have been accumulated
+     * and a checkpoint is performed if the log has grown too much.
+     */
+    synchronized void commit() throws IOException {
+        appendRecord(COMMIT_RECORD, (byte) 0, 0, new byte[0]);
+        this.pendingCommits++;
+
+        if (this.pendingCommits >= this.groupCommitSize) {
+            sync();
+        }
+
+        if (this.logEnd + this.buffer.size() - HEADER_SIZE >= this.checkpointSize) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes all the buffered records to the log and forces it to the device.
+     */
+    synchronized void sync() throws IOException {
+        if (this.buffer.size() > 0) {
+            byte[] records = this.buffer.toByteArray();
+            this.buffer.reset();
+
+            this.logStorage.write(this.logEnd, records);
+            this.logEnd += records.length;
+        }
+
+        this.logStorage.sync();
+        this.pendingCommits = 0;
+    }
+
+    /**
+     * Moves all the logged modifications to the target storages and starts a new epoch of the log.
+     * Has to be called right after a commit, otherwise the current transaction becomes partially applied.
+     */
+    synchronized void checkpoint() throws IOException {
+        // the log has to be durable before any target is modified, so an interrupted checkpoint can be redone
+        sync();
+
+        for (LoggedStorage storage : this.storages) {
+            storage.applyOverlay();
+        }
+
+        this.epoch++;
+        this.logEnd = HEADER_SIZE;
+
+        writeHeader();
+        this.logStorage.sync();
+    }
+
+    /**
+     * Replays all the committed transactions of the current epoch and checkpoints them.
+     * Has to be called after all the storages have been attached and before any of them is accessed.
+     *
+     * @return number of the replayed transactions
+     */
+    synchronized int recover() throws IOException {
+        final long logSize = this.logStorage.size();
+
+        List<LoggedStorage> targets = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        List<byte[]> data = new ArrayList<>();
+
+        int transactions = 0;
+        long position = HEADER_SIZE;
+
+        while (position + RECORD_HEADER_SIZE + CHECKSUM_SIZE <= logSize) {
+            ByteBuffer header = ByteBuffer.wrap(this.logStorage.read(position, RECORD_HEADER_SIZE));
+
+            long epoch = header.getLong();
+            byte type = header.get();
+            byte storageId = header.get();
+            long offset = header.getLong();
+            int length = header.getInt();
+
+            // anything which doesn't look like a complete record of the current epoch is the end of the log
+            if (epoch != this.epoch || (type != WRITE_RECORD && type != COMMIT_RECORD)
+                    || storageId < 0 || storageId >= this.storages.size()
+                    || length < 0 || position + RECORD_HEADER_SIZE + length + CHECKSUM_SIZE > logSize) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.wrap(this.logStorage.read(position + RECORD_HEADER_SIZE, length + CHECKSUM_SIZE));
+            byte[] recordData = new byte[length];
+            body.get(recordData);
+
+            if (body.getInt() != checksum(header.array(), recordData)) {
+                break;
+            }
+
+            position += RECORD_HEADER_SIZE + length + CHECKSUM_SIZE;
+
+            if (type == WRITE_RECORD) {
+                targets.add(this.storages.get(storageId));
+                offsets.add(offset);
+                data.add(recordData);
+            } else {
+                for (int i = 0; i < targets.size(); i++) {
+                    targets.get(i).overlayWrite(offsets.get(i), data.get(i));
+                }
+
+                targets.clear();
+                offsets.clear();
+                data.clear();
+
+                transactions++;
+            }
+        }
+
+        // writes of the last transaction (if any) haven't been committed, so they are just dropped
+        checkpoint();
+
+        return transactions;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.logStorage.close();
+    }
+
+    private void appendRecord(byte type, byte storageId, long offset, byte[] data) {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE)
+                .putLong(this.epoch)
+                .put(type)
+                .put(storageId)
+                .putLong(offset)
+                .putInt(data.length);
+
+        this.buffer.write(header.array(), 0, RECORD_HEADER_SIZE);
+        this.buffer.write(data, 0, data.length);
+
+        int checksum = checksum(header.array(), data);
+        this.buffer.write(ByteBuffer.allocate(CHECKSUM_SIZE).putInt(checksum).array(), 0, CHECKSUM_SIZE);
+    }
+
+    private void writeHeader() throws IOException {
+        this.logStorage.write(0, ByteBuffer.allocate(HEADER_SIZE).putLong(this.epoch).array());
+    }
+
+    private static int checksum(byte[] header, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, RECORD_HEADER_SIZE);
+        crc.update(data, 0, data.length);
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Storage decorator which logs all the writes and serves the reads from the overlay on top of the target storage.
+     */
+    private class LoggedStorage implements Storage {
+
+        private final byte id;
+        private final Storage target;
+
+        // writes which haven't been checkpointed yet, ranges of the entries never overlap
+        private final NavigableMap<Long, byte[]> overlay = new TreeMap<>();
+
+        private long targetSize;
+        private long size;
+
+        LoggedStorage(byte id, Storage target) throws IOException {
+            this.id = id;
+            this.target = target;
+            this.targetSize = target.size();
+            this.size = this.targetSize;
+        }
+
+        @Override
+        public byte[] read(long offset, int length) throws IOException {
+            synchronized (WriteAheadLog.this) {
+                return readLogged(offset, length);
+            }
+        }
+
+        @Override
+        public void write(long offset, byte[] data) {
+            synchronized (WriteAheadLog.this) {
+                appendRecord(WRITE_RECORD, this.id, offset, data);
+
+                // the caller may modify the array later, e.g. a frame of the page cache
+                overlayWrite(offset, data.clone());
+            }
+        }
+
+        @Override
+        public long size() {
+            synchronized (WriteAheadLog.this) {
+                return this.size;
+            }
+        }
+
+        /**
+         * Forces the log rather than the target storage, which is synced by the checkpoints.
+         */
+        @Override
+        public void sync() throws IOException {
+            WriteAheadLog.this.sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.target.close();
+        }
+
+        private byte[] readLogged(long offset, int length) throws IOException {
+            assertState(offset >= 0 && offset + length <= this.size, "Can't read required number of bytes from the storage");
+
+            final long end = offset + length;
+
+            // the most common case: a page which has been written as a whole
+            Map.Entry<Long, byte[]> floor = this.overlay.floorEntry(offset);
+            if (floor != null && floor.getKey() + floor.getValue().length >= end) {
+                int from = (int) (offset - floor.getKey());
+                return Arrays.copyOfRange(floor.getValue(), from, from + length);
+            }
+
+            byte[] result = new byte[length];
+
+            if (offset < this.targetSize) {
+                byte[] targetBytes = this.target.read(offset, (int) Math.min(length, this.targetSize - offset));
+                System.arraycopy(targetBytes, 0, result, 0, targetBytes.length);
+            }
+
+            long from = floor != null ? floor.getKey() : offset;
+
+            for (Map.Entry<Long, byte[]> entry : this.overlay.subMap(from, true, end, false).entrySet()) {
+                copyOverlap(entry.getKey(), entry.getValue(), offset, result);
+            }
+
+            return result;
+        }
+
+        void overlayWrite(long offset, byte[] data) {
+            long start = offset;
+            long end = offset + data.length;
+
+            // entries overlapping the new one are merged with it, so the entries stay disjoint
+            Map.Entry<Long, byte[]> floor = this.overlay.floorEntry(offset);
+            long from = (floor != null && floor.getKey() + floor.getValue().length > offset) ? floor.getKey() : offset;
+
+            NavigableMap<Long, byte[]> overlapping = this.overlay.subMap(from, true, end, false);
+
+            if (!overlapping.isEmpty()) {
+                Map.Entry<Long, byte[]> last = overlapping.lastEntry();
+
+                start = Math.min(start, overlapping.firstKey());
+                end = Math.max(end, last.getKey() + last.getValue().length);
+
+                byte[] merged = new byte[(int) (end - start)];
+                for (Map.Entry<Long, byte[]> entry : overlapping.entrySet()) {
+                    copyOverlap(entry.getKey(), entry.getValue(), start, merged);
+                }
+
+                copyOverlap(offset, data, start, merged);
+
+                overlapping.clear();
+                data = merged;
+            }
+
+            this.overlay.put(start, data);
+            this.size = Math.max(this.size, end);
+        }
+
+        void applyOverlay() throws IOException {
+            if (this.overlay.isEmpty()) {
+                return;
+            }
+
+            // entries are sorted by their offsets, so the target is written mostly sequentially
+            for (Map.Entry<Long, byte[]> entry : this.overlay.entrySet()) {
+                this.target.write(entry.getKey(), entry.getValue());
+            }
+
+            this.target.sync();
+
+            this.overlay.clear();
+            this.targetSize = this.target.size();
+        }
+
+        /**
+         * Copies the part of the source range which overlaps the destination range.
+         */
+        private void copyOverlap(long srcOffset, byte[] src, long dstOffset, byte[] dst) {
+            long start = Math.max(srcOffset, dstOffset);
+            long end = Math.min(srcOffset + src.length, dstOffset + dst.length);
+
+            if (start < end) {
+                System.arraycopy(src, (int) (start - srcOffset), dst, (int) (start - dstOffset), (int) (end - start));
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.test.map.disk;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.test.map.disk.Utils.assertState;
+
+/**
+ * Set of puts and removes applied to a {@link DiskHahMap} at once by {@link DiskHahMap#write(WriteBatch, boolean)}.
+ * Only the last operation for each key is kept. Arrays passed to the batch mustn't be modified until it's written.
+ */
+public class WriteBatch {
+
+    // null value means removal of the key
+    private final Map<ByteBuffer, byte[]> operations = new LinkedHashMap<>();
+
+    public WriteBatch put(byte[] key, byte[] value) {
+        assertState(key != null, "Null keys are not allowed");
+        assertState(value != null, "Null values are not allowed");
+
+        this.operations.put(ByteBuffer.wrap(key), value);
+        return this;
+    }
+
+    public WriteBatch remove(byte[] key) {
+        assertState(key != null, "Null keys are not allowed");
+
+        this.operations.put(ByteBuffer.wrap(key), null);
+        return this;
+    }
+
+    public int size() {
+        return this.operations.size();
+    }
+
+    public boolean isEmpty() {
+        return this.operations.isEmpty();
+    }
+
+    public void clear() {
+        this.operations.clear();
+    }
+
+    Collection<Map.Entry<ByteBuffer, byte[]>> operations() {
+        return this.operations.entrySet();
+    }
+}
@@ -0,0 +1,49 @@
+package com.test.map.offheap;
+
+/**
+ * Snapshot of the memory usage of an {@link OffHeapAllocator}.
+ * <p>
+ * {@code reserved = live + free + fragmented}, where
+ * <ul>
+ * <li>{@code reserved} - memory obtained from the OS</li>
+ * <li>{@code live} - memory requested by the callers and not freed yet</li>
+ * <li>{@code free} - memory which can be handed out by the allocator without obtaining more from the OS</li>
+ * <li>{@code fragmented} - the rest: rounding of allocations up to a size class, unusable tails of slabs, etc.</li>
+ * </ul>
+ */
+public class AllocatorStats {
+
+    private final long reservedBytes;
+    private final long liveBytes;
+    private final long freeBytes;
+
+    public AllocatorStats(long reservedBytes, long liveBytes, long freeBytes) {
+        this.reservedBytes = reservedBytes;
+        this.liveBytes = liveBytes;
+        this.freeBytes = freeBytes;
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    public long getFreeBytes() {
+        return freeBytes;
+    }
+
+    public long getFragmentedBytes() {
+        return reservedBytes - liveBytes - freeBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "reserved: %d, live: %d, free: %d, fragmented: %d",
+                reservedBytes, liveBytes, freeBytes, getFragmentedBytes()
+        );
+    }
+}
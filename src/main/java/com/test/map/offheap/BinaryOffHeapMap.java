@@ -2,15 +2,22 @@ package com.test.map.offheap;
 
 import sun.misc.Unsafe;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class BinaryOffHeapMap implements Map<byte[], byte[]> {
-
-    //TODO: 2. buckets array chunking (cause it can growths to relative big size)
-    //TODO: 3. keys/values chunking
+public class BinaryOffHeapMap implements Map<byte[], byte[]>, AutoCloseable {
 
     private static final Unsafe unsafe = UnsafeUtil.getUnsafe();
 
@@ -23,24 +30,104 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
     private static final int NULL_SIZE = -1;
     private static final int NO_ADDRESS = 0;
 
+    /**
+     * Returned by the allocation-free {@code get} methods when the key is present, but its value is {@code null}.
+     */
+    public static final int NULL_VALUE = NULL_SIZE;
+
+    /**
+     * Returned by the allocation-free {@code get} methods when there is no such key in the map.
+     */
+    public static final int ABSENT = -2;
+
+    // offset of the java.nio.Buffer.address field, which holds the native address of a direct buffer
+    private static final long BUFFER_ADDRESS_OFFSET = bufferAddressOffset();
+
     private static final int DEFAULT_TABLE_SIZE = 16;
+    private static final double DEFAULT_MAX_LOAD_FACTOR = 0.75;
+
+    /*
+     * Bucket table is split into fixed size off-heap segments, so it can grow incrementally (linear hashing):
+     * each split adds one bucket and a new segment is allocated only when the first of its buckets comes into use.
+     */
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final long SEGMENT_SIZE_IN_BYTES = SEGMENT_SIZE * LONG_SIZE;
+
+    private static final AtomicLong mapsCounter = new AtomicLong();
+
+    private final OffHeapAllocator allocator;
+    // map can release all the memory of its own allocator at once, the one passed by a client could be shared
+    private final boolean ownsAllocator;
 
     private long size;
-    private long tableAddress;
-    private long mask;
+    // number of structural modifications, used by the iterators to detect concurrent modifications
+    private int modCount;
+
+    // addresses of the bucket table segments, NO_ADDRESS for the segments which aren't allocated yet,
+    // null once the map is closed
+    private long[] segments;
+
+    // everything which has to be freed if the map is garbage collected without being closed
+    private final NativeResources resources;
+    private final NativeCleaner.Cleanable cleanable;
+
+    private final double maxLoadFactor;
+    private final long initialBucketsNum;
+
+    // Invariant: 0 <= splitIndex < 2 ^ (hashBits - 1) = 1 << (hashBits - 1)
+    private int hashBits;
+    private long splitIndex;
 
     public BinaryOffHeapMap() {
         this(DEFAULT_TABLE_SIZE);
     }
 
     public BinaryOffHeapMap(long size) {
-        long tableSize = Long.highestOneBit(size - 1) << 1;
-        long sizeInBytes = LONG_SIZE * tableSize;
+        this(size, DEFAULT_MAX_LOAD_FACTOR);
+    }
+
+    public BinaryOffHeapMap(long initialSize, double maxLoadFactor) {
+        this(initialSize, maxLoadFactor, new SlabAllocator(), true);
+    }
+
+    public BinaryOffHeapMap(long initialSize, double maxLoadFactor, OffHeapAllocator allocator) {
+        this(initialSize, maxLoadFactor, allocator, false);
+    }
+
+    private BinaryOffHeapMap(long initialSize, double maxLoadFactor, OffHeapAllocator allocator, boolean ownsAllocator) {
+        long bucketsNum = (initialSize <= 1)
+                ? 1
+                : (Long.highestOneBit(initialSize - 1) << 1);
 
-        this.tableAddress = unsafe.allocateMemory(sizeInBytes);
-        unsafe.setMemory(this.tableAddress, sizeInBytes, (byte) 0);
+        // hash is a 32 bits value, so there is no sense in more buckets
+        this.initialBucketsNum = Math.min(bucketsNum, 1L << (Integer.SIZE - 1));
 
-        this.mask = tableSize - 1; //tableSize = 00...0100...0 => mask = 00...0011...1
+        this.allocator = allocator;
+        this.ownsAllocator = ownsAllocator;
+        this.maxLoadFactor = maxLoadFactor;
+
+        this.resources = new NativeResources(
+                ownsAllocator ? (SlabAllocator) allocator : null,
+                NativeMemoryTracker.open("BinaryOffHeapMap-" + mapsCounter.incrementAndGet())
+        );
+        this.cleanable = NativeCleaner.register(this, resources);
+
+        initTable();
+    }
+
+    private void initTable() {
+        long segmentsNum = ((initialBucketsNum - 1) >>> SEGMENT_BITS) + 1;
+
+        this.segments = new long[(int) segmentsNum];
+        this.resources.segments = this.segments;
+
+        for (int i = 0; i < segmentsNum; i++) {
+            this.segments[i] = allocateSegment();
+        }
+
+        this.hashBits = Long.SIZE - Long.numberOfLeadingZeros(initialBucketsNum);
+        this.splitIndex = 0;
         this.size = 0;
     }
 
@@ -56,11 +143,34 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
 
     @Override
     public boolean containsKey(Object key) {
-        return false;
+        if (key != null && !(key instanceof byte[])) {
+            return false;
+        }
+
+        return findNode((byte[]) key) != NO_ADDRESS;
     }
 
     @Override
-    public boolean containsValue(Object value) {
+    public boolean containsValue(Object valueObj) {
+        if (valueObj != null && !(valueObj instanceof byte[])) {
+            return false;
+        }
+
+        checkOpen();
+
+        final byte[] value = (byte[]) valueObj;
+        final long bucketsNum = bucketsNum();
+
+        for (long index = 0; index < bucketsNum; index++) {
+            for (long nodeAddress = unsafe.getLong(bucketAddress(index)); nodeAddress != NO_ADDRESS; ) {
+                if (equalValues(nodeAddress, value)) {
+                    return true;
+                }
+
+                nodeAddress = getNextNodeAddress(nodeAddress);
+            }
+        }
+
         return false;
     }
 
@@ -70,33 +180,133 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
             return null;
         }
 
-        byte[] key = (byte[]) keyObj;
+        final long nodeAddress = findNode((byte[]) keyObj);
 
-        final long index = indexFor(hash(key));
-        final long bucketAddress = bucketAddress(index);
+        if (nodeAddress == NO_ADDRESS) {
+            return null;
+        }
 
-        final long headNodeAddress = unsafe.getLong(bucketAddress);
+        return readArray(getValueAddress(nodeAddress), getValueSize(nodeAddress));
+    }
 
-        if (headNodeAddress == 0) {
+    /* ----------------- Allocation-free reads ----------------- */
+
+    /**
+     * Copies the value associated with the given key into the {@code destination} array starting from {@code offset},
+     * but only if the whole value fits into it, otherwise the array stays untouched.
+     *
+     * @return size of the value, {@link #NULL_VALUE} if the value is {@code null} or {@link #ABSENT} if there is no such key
+     */
+    public int get(byte[] key, byte[] destination, int offset) {
+        // an unchecked offset would make the copy below write outside of the array
+        if (offset < 0 || offset > destination.length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " is out of bounds for length " + destination.length);
+        }
+
+        final long nodeAddress = findNode(key);
+
+        if (nodeAddress == NO_ADDRESS) {
+            return ABSENT;
+        }
+
+        final int valueSize = getValueSize(nodeAddress);
+
+        if (valueSize > 0 && valueSize <= destination.length - offset) {
+            unsafe.copyMemory(null, getValueAddress(nodeAddress), destination, BYTE_ARRAY_OFFSET + offset, valueSize);
+        }
+
+        return valueSize;
+    }
+
+    /**
+     * Copies the value associated with the given key into the {@code destination} buffer (heap or direct) starting
+     * from its current position, but only if the whole value fits into its remaining space. Position of the buffer
+     * is advanced by the number of copied bytes.
+     *
+     * @return size of the value, {@link #NULL_VALUE} if the value is {@code null} or {@link #ABSENT} if there is no such key
+     */
+    public int get(byte[] key, ByteBuffer destination) {
+        // fail the same way as ByteBuffer.put(...) does, a direct buffer would be written by Unsafe anyway
+        if (destination.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        final long nodeAddress = findNode(key);
+
+        if (nodeAddress == NO_ADDRESS) {
+            return ABSENT;
+        }
+
+        final int valueSize = getValueSize(nodeAddress);
+
+        if (valueSize > 0 && valueSize <= destination.remaining()) {
+            final long valueAddress = getValueAddress(nodeAddress);
+            final int position = destination.position();
+
+            if (destination.hasArray()) {
+                long arrayOffset = BYTE_ARRAY_OFFSET + destination.arrayOffset() + position;
+                unsafe.copyMemory(null, valueAddress, destination.array(), arrayOffset, valueSize);
+            } else {
+                long bufferAddress = unsafe.getLong(destination, BUFFER_ADDRESS_OFFSET);
+                unsafe.copyMemory(valueAddress, bufferAddress + position, valueSize);
+            }
+
+            destination.position(position + valueSize);
+        }
+
+        return valueSize;
+    }
+
+    /**
+     * Passes the off-heap location of the value associated with the given key to the {@code visitor}.
+     * The address is valid only until the next modification of the map, so it must not escape the visitor.
+     *
+     * @return result of the visitor or {@code null} if there is no such key
+     */
+    public <R> R get(byte[] key, ValueVisitor<R> visitor) {
+        final long nodeAddress = findNode(key);
+
+        if (nodeAddress == NO_ADDRESS) {
             return null;
         }
 
-        for (long nodeAddress = headNodeAddress; nodeAddress != 0; ) {
-            Node node = readNode(nodeAddress);
+        return visitor.visit(getValueAddress(nodeAddress), getValueSize(nodeAddress));
+    }
+
+    /**
+     * Callback over the off-heap bytes of a value.
+     */
+    public interface ValueVisitor<R> {
+
+        /**
+         * @param address address of the first byte of the value
+         * @param size    size of the value in bytes or {@link #NULL_VALUE} if the value is {@code null}
+         */
+        R visit(long address, int size);
+    }
+
+    private long findNode(byte[] key) {
+        checkOpen();
+
+        final long hash = hash(key);
+        final long bucketAddress = bucketAddress(indexFor(hash));
 
-            if (equalKeys(node, key)) {
-                return readArray(node.valueAddress, node.valueSize, false);
+        for (long nodeAddress = unsafe.getLong(bucketAddress); nodeAddress != NO_ADDRESS; ) {
+            if (equalKeys(nodeAddress, key, hash)) {
+                return nodeAddress;
             }
 
-            nodeAddress = node.nextNodeAddress;
+            nodeAddress = getNextNodeAddress(nodeAddress);
         }
 
         //not found
-        return null;
+        return NO_ADDRESS;
     }
 
     @Override
     public byte[] put(byte[] key, byte[] value) {
+        checkOpen();
+
         final long hash = hash(key);
         final long index = indexFor(hash);
 
@@ -109,21 +319,22 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
             unsafe.putLong(bucketAddress, newNodeAddress);
 
             size++;
+            modCount++;
+            split();
+
             return null;
         }
 
-        long prevNodeAddress;
+        long prevNodeAddress = 0;
         long currentNodeAddress = headNodeAddress;
         do {
-            Node currentNode = readNode(currentNodeAddress);
-
-            if (equalKeys(currentNode, key)) {
+            if (equalKeys(currentNodeAddress, key, hash)) {
                 //found node with the same key - replace old value with a new one
-                return replaceValue(currentNodeAddress, currentNode.valueAddress, currentNode.valueSize, value);
+                return replaceValue(bucketAddress, prevNodeAddress, currentNodeAddress, key, value);
             }
 
             prevNodeAddress = currentNodeAddress;
-            currentNodeAddress = currentNode.nextNodeAddress;
+            currentNodeAddress = getNextNodeAddress(currentNodeAddress);
         } while (currentNodeAddress != 0);
 
         //append new node to the end of the chain
@@ -131,6 +342,9 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
         setNextNodeAddress(prevNodeAddress, newNodeAddress);
 
         size++;
+        modCount++;
+        split();
+
         return null;
     }
 
@@ -140,10 +354,12 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
             return null;
         }
 
+        checkOpen();
+
         byte[] key = (byte[]) keyObj;
 
-        final long index = indexFor(hash(key));
-        final long bucketAddress = bucketAddress(index);
+        final long hash = hash(key);
+        final long bucketAddress = bucketAddress(indexFor(hash));
 
         final long headNodeAddress = unsafe.getLong(bucketAddress);
 
@@ -154,37 +370,44 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
         long prevNodeAddress = 0; //needed for chain adjustment
 
         for (long nodeAddress = headNodeAddress; nodeAddress != 0; ) {
-            Node node = readNode(nodeAddress);
+            final long nextNodeAddress = getNextNodeAddress(nodeAddress);
 
-            if (equalKeys(node, key)) {
-                byte[] value = readArray(node.valueAddress, node.valueSize, true /* deallocate memory occupied by value */);
+            if (equalKeys(nodeAddress, key, hash)) {
+                byte[] value = readArray(getValueAddress(nodeAddress), getValueSize(nodeAddress));
 
                 if (prevNodeAddress == 0) {
                     //key found in the head node
-                    unsafe.putLong(bucketAddress, node.nextNodeAddress);
+                    unsafe.putLong(bucketAddress, nextNodeAddress);
                 } else {
-                    setNextNodeAddress(prevNodeAddress, node.nextNodeAddress);
+                    setNextNodeAddress(prevNodeAddress, nextNodeAddress);
                 }
 
-                //value memory is already freed, do the same thing with the memory allocated for a key and for a node itself
-                unsafe.freeMemory(node.keyAddress);
-                unsafe.freeMemory(nodeAddress);
+                //key and value are stored within the node, so there is a single block to free
+                freeNode(nodeAddress, getNodeSize(nodeAddress));
 
                 size--;
+                modCount++;
                 return value;
             }
 
             prevNodeAddress = nodeAddress;
-            nodeAddress = node.nextNodeAddress;
+            nodeAddress = nextNodeAddress;
         }
 
         //not found
         return null;
     }
 
-    private static boolean equalKeys(Node node, byte[] key) {
-        //1. check for null equality
-        boolean nodeKeyIsNull = node.keySize == NULL_SIZE;
+    private static boolean equalKeys(long nodeAddress, byte[] key, long hash) {
+        //1. compare full hashes stored in the nodes, most of the mismatches are rejected here
+        if (getHash(nodeAddress) != hash) {
+            return false;
+        }
+
+        final int keySize = getKeySize(nodeAddress);
+
+        //2. check for null equality
+        boolean nodeKeyIsNull = keySize == NULL_SIZE;
         boolean keyIsNull = key == null;
 
         if (nodeKeyIsNull && keyIsNull) {
@@ -195,14 +418,42 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
             return false;
         }
 
-        //2. compare size
-        if (node.keySize != key.length) {
+        //3. compare size
+        if (keySize != key.length) {
             return false;
         }
 
-        //3. compare content
-        for (int i = 0; i < key.length; i++) {
-            if (key[i] != unsafe.getByte(node.keyAddress + i)) {
+        //4. compare content
+        return equalBytes(getKeyAddress(nodeAddress), key);
+    }
+
+    private static boolean equalValues(long nodeAddress, byte[] value) {
+        final int valueSize = getValueSize(nodeAddress);
+
+        if (value == null || valueSize == NULL_SIZE) {
+            return value == null && valueSize == NULL_SIZE;
+        }
+
+        return valueSize == value.length && equalBytes(getValueAddress(nodeAddress), value);
+    }
+
+    /**
+     * Compares off-heap bytes with an array 8 bytes at a time, the remaining tail is compared byte by byte.
+     * Both sides are read in the native byte order, so the order itself doesn't matter.
+     */
+    private static boolean equalBytes(long address, byte[] array) {
+        final int length = array.length;
+        final int longsEnd = length & ~(LONG_SIZE - 1);
+
+        int i = 0;
+        for (; i < longsEnd; i += LONG_SIZE) {
+            if (unsafe.getLong(array, BYTE_ARRAY_OFFSET + (long) i) != unsafe.getLong(address + i)) {
+                return false;
+            }
+        }
+
+        for (; i < length; i++) {
+            if (array[i] != unsafe.getByte(address + i)) {
                 return false;
             }
         }
@@ -213,18 +464,226 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
 
     @Override
     public void putAll(Map<? extends byte[], ? extends byte[]> m) {
+        checkOpen();
+
+        //grow the table upfront as if all the keys were new, so the puts below don't need to split anything
+        final double expectedBuckets = (size + m.size()) / maxLoadFactor;
 
+        while (bucketsNum() < expectedBuckets && hashBits <= Integer.SIZE) {
+            splitNext();
+        }
+
+        for (Entry<? extends byte[], ? extends byte[]> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
     }
 
+    /**
+     * Frees all the memory occupied by the entries and shrinks the table back to its initial size.
+     * If the map uses its own allocator, all the entries are freed at once, without walking the chains.
+     */
     @Override
     public void clear() {
+        checkOpen();
+
+        if (ownsAllocator) {
+            ((SlabAllocator) allocator).release();
+        } else {
+            freeNodes();
+        }
+
+        resources.freeTable();
+        resources.account.reset();
 
+        initTable();
+        modCount++;
+    }
+
+    /**
+     * Frees all the native memory of the map: the bucket table and all the entries. The map can't be used after that.
+     * Closing an already closed map has no effect.
+     * <p>
+     * A map which is not closed explicitly is cleaned up after it's garbage collected, but only partially
+     * if its allocator was passed by a client, see {@link NativeResources}.
+     */
+    @Override
+    public void close() {
+        if (segments == null) {
+            return;
+        }
+
+        // own allocator is released by the cleanup action as a whole
+        if (!ownsAllocator) {
+            freeNodes();
+        }
+
+        cleanable.clean();
+
+        segments = null;
+        size = 0;
+        modCount++;
+    }
+
+    private void checkOpen() {
+        if (segments == null) {
+            throw new IllegalStateException("Map is closed");
+        }
+    }
+
+    private void freeNodes() {
+        final long bucketsNum = bucketsNum();
+
+        for (long index = 0; index < bucketsNum; index++) {
+            for (long nodeAddress = unsafe.getLong(bucketAddress(index)); nodeAddress != NO_ADDRESS; ) {
+                final long nextNodeAddress = getNextNodeAddress(nodeAddress);
+                freeNode(nodeAddress, getNodeSize(nodeAddress));
+
+                nodeAddress = nextNodeAddress;
+            }
+        }
+    }
+
+    /* ----------------- Incremental growth ----------------- */
+
+    private void split() {
+        if (loadFactor() < maxLoadFactor || hashBits > Integer.SIZE) {
+            return;
+        }
+
+        splitNext();
+    }
+
+    private void splitNext() {
+        final long edgeBit = 1L << (hashBits - 1);
+        final long buddyIndex = splitIndex + edgeBit; // splitIndex + 2 ^ (hashBits - 1)
+
+        final long splitBucketAddress = bucketAddress(splitIndex);
+        final long buddyBucketAddress = bucketAddress(ensureSegment(buddyIndex));
+
+        long prevNodeAddress = 0;
+        long buddyHeadAddress = 0;
+
+        for (long nodeAddress = unsafe.getLong(splitBucketAddress); nodeAddress != 0; ) {
+            final long nextNodeAddress = getNextNodeAddress(nodeAddress);
+
+            if ((getHash(nodeAddress) & edgeBit) != 0) {
+                //1. exclude node from the split bucket chain
+                if (prevNodeAddress == 0) {
+                    unsafe.putLong(splitBucketAddress, nextNodeAddress);
+                } else {
+                    setNextNodeAddress(prevNodeAddress, nextNodeAddress);
+                }
+
+                //2. prepend it to the buddy bucket chain
+                setNextNodeAddress(nodeAddress, buddyHeadAddress);
+                buddyHeadAddress = nodeAddress;
+            } else {
+                prevNodeAddress = nodeAddress;
+            }
+
+            nodeAddress = nextNodeAddress;
+        }
+
+        unsafe.putLong(buddyBucketAddress, buddyHeadAddress);
+
+        incSplitIndex();
+        modCount++;
+    }
+
+    private void incSplitIndex() {
+        splitIndex++;
+
+        if (splitIndex == (1L << (hashBits - 1))) {
+            hashBits++;
+            splitIndex = 0;
+        }
+    }
+
+    private double loadFactor() {
+        return size / ((double) bucketsNum());
+    }
+
+    private long bucketsNum() {
+        return (1L << (hashBits - 1)) + splitIndex;
+    }
+
+    /**
+     * Makes sure that the segment containing the given bucket is allocated.
+     *
+     * @return the same bucket index
+     */
+    private long ensureSegment(long index) {
+        int segmentIndex = (int) (index >>> SEGMENT_BITS);
+
+        if (segmentIndex >= segments.length) {
+            // only the addresses are copied, the buckets themselves stay where they are
+            segments = Arrays.copyOf(segments, Math.max(segmentIndex + 1, segments.length << 1));
+            resources.segments = segments;
+        }
+
+        if (segments[segmentIndex] == NO_ADDRESS) {
+            segments[segmentIndex] = allocateSegment();
+        }
+
+        return index;
+    }
+
+    private long allocateSegment() {
+        long address = unsafe.allocateMemory(SEGMENT_SIZE_IN_BYTES);
+        unsafe.setMemory(address, SEGMENT_SIZE_IN_BYTES, (byte) 0);
+
+        resources.account.add(SEGMENT_SIZE_IN_BYTES);
+
+        return address;
+    }
+
+    /**
+     * Native memory of a map which is garbage collected without being closed is freed by the cleaner thread.
+     * It must not refer to the map itself and it can't free the nodes if the allocator was passed by a client:
+     * allocators aren't thread-safe and such an allocator can still be in use by other maps.
+     * So only the bucket table and the map's own allocator are freed here, nodes allocated from a client's
+     * allocator are freed only by {@link #close()} or {@link #clear()}.
+     */
+    private static final class NativeResources implements Runnable {
+
+        private final SlabAllocator ownAllocator;
+        private final NativeMemoryTracker.Account account;
+
+        // the same array as the map's one, the reference is updated whenever the map replaces it
+        private long[] segments;
+
+        NativeResources(SlabAllocator ownAllocator, NativeMemoryTracker.Account account) {
+            this.ownAllocator = ownAllocator;
+            this.account = account;
+        }
+
+        void freeTable() {
+            for (long segmentAddress : segments) {
+                if (segmentAddress != NO_ADDRESS) {
+                    unsafe.freeMemory(segmentAddress);
+                }
+            }
+
+            segments = null;
+        }
+
+        @Override
+        public void run() {
+            freeTable();
+
+            if (ownAllocator != null) {
+                ownAllocator.release();
+            }
+
+            account.close();
+        }
     }
 
     /* ----------------- Utility methods for hash/index manipulations ----------------- */
 
     private long bucketAddress(long index) {
-        return tableAddress + index * LONG_SIZE;
+        long segmentAddress = segments[(int) (index >>> SEGMENT_BITS)];
+        return segmentAddress + (index & (SEGMENT_SIZE - 1)) * LONG_SIZE;
     }
 
     private static long hash(byte[] key) {
@@ -232,136 +691,393 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
     }
 
     private long indexFor(long hash) {
-        return hash & mask;
+        long fullIndex = hash & mask(hashBits);
+        long halfIndex = fullIndex & ~(1L << (hashBits - 1));
+
+        return halfIndex < splitIndex ? fullIndex : halfIndex;
+    }
+
+    private static long mask(int nBits) {
+        return (1L << nBits) - 1;
     }
 
+    /* ----------------- Views ----------------- */
+
+    /*
+     * Views don't copy anything, their iterators walk the chains and read keys and values from
+     * the off-heap memory one entry at a time.
+     */
+
     @Override
     public Set<byte[]> keySet() {
-        return null;
+        return new AbstractSet<byte[]>() {
+            @Override
+            public Iterator<byte[]> iterator() {
+                return new NodeIterator<byte[]>() {
+                    @Override
+                    byte[] read(long nodeAddress) {
+                        return readArray(getKeyAddress(nodeAddress), getKeySize(nodeAddress));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return BinaryOffHeapMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!containsKey(o)) {
+                    return false;
+                }
+
+                BinaryOffHeapMap.this.remove(o);
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                BinaryOffHeapMap.this.clear();
+            }
+        };
     }
 
     @Override
     public Collection<byte[]> values() {
-        return null;
+        return new AbstractCollection<byte[]>() {
+            @Override
+            public Iterator<byte[]> iterator() {
+                return new NodeIterator<byte[]>() {
+                    @Override
+                    byte[] read(long nodeAddress) {
+                        return readArray(getValueAddress(nodeAddress), getValueSize(nodeAddress));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return BinaryOffHeapMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsValue(o);
+            }
+
+            @Override
+            public void clear() {
+                BinaryOffHeapMap.this.clear();
+            }
+        };
     }
 
     @Override
     public Set<Entry<byte[], byte[]>> entrySet() {
-        return null;
+        return new AbstractSet<Entry<byte[], byte[]>>() {
+            @Override
+            public Iterator<Entry<byte[], byte[]>> iterator() {
+                return new NodeIterator<Entry<byte[], byte[]>>() {
+                    @Override
+                    Entry<byte[], byte[]> read(long nodeAddress) {
+                        return new OffHeapEntry(
+                                readArray(getKeyAddress(nodeAddress), getKeySize(nodeAddress)),
+                                readArray(getValueAddress(nodeAddress), getValueSize(nodeAddress))
+                        );
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return BinaryOffHeapMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Entry)) {
+                    return false;
+                }
+
+                Entry<?, ?> entry = (Entry<?, ?>) o;
+                Object key = entry.getKey();
+                Object value = entry.getValue();
+
+                if ((key != null && !(key instanceof byte[])) || (value != null && !(value instanceof byte[]))) {
+                    return false;
+                }
+
+                long nodeAddress = findNode((byte[]) key);
+                return nodeAddress != NO_ADDRESS && equalValues(nodeAddress, (byte[]) value);
+            }
+
+            @Override
+            public boolean remove(Object o) {
+                if (!contains(o)) {
+                    return false;
+                }
+
+                BinaryOffHeapMap.this.remove(((Entry<?, ?>) o).getKey());
+                return true;
+            }
+
+            @Override
+            public void clear() {
+                BinaryOffHeapMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Walks all the nodes bucket by bucket. Address of the next node is looked up in advance,
+     * so the last returned node can be safely removed from the map.
+     */
+    private abstract class NodeIterator<T> implements Iterator<T> {
+
+        private long nextBucketIndex;
+        private long nextNodeAddress = NO_ADDRESS;
+        // key of the last returned node rather than its address: Entry.setValue may reallocate the node
+        private byte[] lastKey;
+        // the key itself can't tell whether there is a node to remove, as it may be null
+        private boolean canRemove;
+
+        private int expectedModCount = modCount;
+
+        NodeIterator() {
+            checkOpen();
+            advance(NO_ADDRESS);
+        }
+
+        abstract T read(long nodeAddress);
+
+        @Override
+        public boolean hasNext() {
+            return nextNodeAddress != NO_ADDRESS;
+        }
+
+        @Override
+        public T next() {
+            checkForComodification();
+
+            if (nextNodeAddress == NO_ADDRESS) {
+                throw new NoSuchElementException();
+            }
+
+            final long nodeAddress = nextNodeAddress;
+
+            lastKey = readArray(getKeyAddress(nodeAddress), getKeySize(nodeAddress));
+            canRemove = true;
+            advance(nodeAddress);
+
+            return read(nodeAddress);
+        }
+
+        @Override
+        public void remove() {
+            if (!canRemove) {
+                throw new IllegalStateException();
+            }
+
+            checkForComodification();
+
+            BinaryOffHeapMap.this.remove(lastKey);
+
+            lastKey = null;
+            canRemove = false;
+            expectedModCount = modCount;
+        }
+
+        private void advance(long currentNodeAddress) {
+            if (currentNodeAddress != NO_ADDRESS) {
+                nextNodeAddress = getNextNodeAddress(currentNodeAddress);
+            }
+
+            final long bucketsNum = bucketsNum();
+
+            while (nextNodeAddress == NO_ADDRESS && nextBucketIndex < bucketsNum) {
+                nextNodeAddress = unsafe.getLong(bucketAddress(nextBucketIndex++));
+            }
+        }
+
+        private void checkForComodification() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    private class OffHeapEntry extends AbstractMap.SimpleEntry<byte[], byte[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        OffHeapEntry(byte[] key, byte[] value) {
+            super(key, value);
+        }
+
+        @Override
+        public byte[] setValue(byte[] value) {
+            BinaryOffHeapMap.this.put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    public AllocatorStats allocatorStats() {
+        return allocator.stats();
     }
 
     /*
-     * Node memory layout:
+     * Node memory layout (node, key and value share a single allocated block):
      * <p>
      * |<------ 8 bytes ------>|
      * +-----------------------+   ^
-     * |      Key address      |   |
-     * +-----------------------+   |
-     * |     Value address     |   |
-     * +----------+------------+   |
-     * | Key size | Value size |   | decreasing
-     * +----------+------------+   | addresses
      * |   Next node address   |   |
+     * +-----------+-----------+   |
+     * |    Hash   | Key size  |   |
+     * +-----------+-----------+   | decreasing
+     * |Value size | Node size |   | addresses
+     * +-----------+-----------+   |
+     * |      Key bytes ...    |   |
      * +-----------------------+   |
-     * |          Hash         |   |
+     * |     Value bytes ...   |   |
      * +-----------------------+   |
+     * <p>
+     * Node size is the size of the whole block as it was allocated, a value can be replaced
+     * in place by a smaller one, so it isn't always equal to the sum of the other sizes.
      */
 
-    private static long storeNode(Node node) {
-        final long address = unsafe.allocateMemory(Node.NODE_SIZE);
-        long writeAddress = address;
+    private long createNewNode(byte[] key, byte[] value, long computedHash) {
+        final int keySize = sizeOf(key);
+        final int valueSize = sizeOf(value);
+        final int nodeSize = Node.HEADER_SIZE + bytesNum(keySize) + bytesNum(valueSize);
+
+        final long address = allocator.allocate(nodeSize);
+        resources.account.add(nodeSize);
+
+        unsafe.putLong(address + Node.NEXT_NODE_ADDRESS_OFFSET, NO_ADDRESS);
+        unsafe.putInt(address + Node.HASH_OFFSET, (int) computedHash);
+        unsafe.putInt(address + Node.KEY_SIZE_OFFSET, keySize);
+        unsafe.putInt(address + Node.VALUE_SIZE_OFFSET, valueSize);
+        unsafe.putInt(address + Node.NODE_SIZE_OFFSET, nodeSize);
 
-        unsafe.putLong(writeAddress, node.keyAddress);
-        unsafe.putLong(writeAddress += LONG_SIZE, node.valueAddress);
-        unsafe.putInt(writeAddress += LONG_SIZE, node.keySize);
-        unsafe.putInt(writeAddress += INT_SIZE, node.valueSize);
-        unsafe.putLong(writeAddress += INT_SIZE, node.nextNodeAddress);
-        unsafe.putLong(writeAddress += LONG_SIZE, node.hash);
+        final long keyAddress = address + Node.HEADER_SIZE;
+        storeArray(key, keyAddress);
+        storeArray(value, keyAddress + bytesNum(keySize));
 
         return address;
     }
 
-    private static Node readNode(long address) {
-        return new Node(
-                unsafe.getLong(address),
-                unsafe.getLong(address += LONG_SIZE),
-                unsafe.getInt(address += LONG_SIZE),
-                unsafe.getInt(address += INT_SIZE),
-                unsafe.getLong(address += INT_SIZE),
-                unsafe.getLong(address += LONG_SIZE)
-        );
-    }
+    private byte[] replaceValue(long bucketAddress, long prevNodeAddress, long nodeAddress, byte[] key, byte[] newValue) {
+        final long valueAddress = getValueAddress(nodeAddress);
+        final int nodeSize = getNodeSize(nodeAddress);
 
-    private static long createNewNode(byte[] key, byte[] value, long computedHash) {
-        SizeAndAddress keyInfo = storeArray(key);
-        SizeAndAddress valueInfo = storeArray(value);
+        final byte[] oldValue = readArray(valueAddress, getValueSize(nodeAddress));
+        final int newValueSize = sizeOf(newValue);
 
-        return storeNode(new Node(keyInfo.address, valueInfo.address, keyInfo.size, valueInfo.size, 0, computedHash));
-    }
+        if (Node.HEADER_SIZE + bytesNum(getKeySize(nodeAddress)) + bytesNum(newValueSize) <= nodeSize) {
+            //new value fits into the same block
+            storeArray(newValue, valueAddress);
+            unsafe.putInt(nodeAddress + Node.VALUE_SIZE_OFFSET, newValueSize);
 
-    private static byte[] replaceValue(long nodeAddress, long oldValueAddress, int oldValueSize, byte[] newValue) {
-        SizeAndAddress info = storeArray(newValue);
+            return oldValue;
+        }
+
+        //allocate a bigger node and put it in place of the old one
+        long newNodeAddress = createNewNode(key, newValue, getHash(nodeAddress));
+        setNextNodeAddress(newNodeAddress, getNextNodeAddress(nodeAddress));
 
-        //update value address and value size information in already stored node
-        unsafe.putLong(nodeAddress + Node.VALUE_ADDRESS_OFFSET, info.address);
-        unsafe.putInt(nodeAddress + Node.VALUE_SIZE_OFFSET, info.size);
+        if (prevNodeAddress == 0) {
+            unsafe.putLong(bucketAddress, newNodeAddress);
+        } else {
+            setNextNodeAddress(prevNodeAddress, newNodeAddress);
+        }
+
+        freeNode(nodeAddress, nodeSize);
+
+        return oldValue;
+    }
 
-        //read old value and deallocate memory
-        return readArray(oldValueAddress, oldValueSize, true /* deallocate */);
+    private void freeNode(long nodeAddress, int nodeSize) {
+        allocator.free(nodeAddress, nodeSize);
+        resources.account.add(-nodeSize);
     }
 
+    /* Node fields are read and written in place, no on-heap representation of a node is ever created */
+
     private static void setNextNodeAddress(long prevNodeAddress, long nextNodeAddress) {
         unsafe.putLong(prevNodeAddress + Node.NEXT_NODE_ADDRESS_OFFSET, nextNodeAddress);
     }
 
-    private static class Node {
+    private static long getNextNodeAddress(long nodeAddress) {
+        return unsafe.getLong(nodeAddress + Node.NEXT_NODE_ADDRESS_OFFSET);
+    }
+
+    private static long getHash(long nodeAddress) {
+        return unsafe.getInt(nodeAddress + Node.HASH_OFFSET);
+    }
 
-        static final int NODE_SIZE = 4 * LONG_SIZE + 2 * INT_SIZE;
+    private static int getKeySize(long nodeAddress) {
+        return unsafe.getInt(nodeAddress + Node.KEY_SIZE_OFFSET);
+    }
 
-        static final int VALUE_ADDRESS_OFFSET = LONG_SIZE;
-        static final int VALUE_SIZE_OFFSET = VALUE_ADDRESS_OFFSET + LONG_SIZE + INT_SIZE;
-        static final int NEXT_NODE_ADDRESS_OFFSET = VALUE_SIZE_OFFSET + INT_SIZE;
+    private static int getValueSize(long nodeAddress) {
+        return unsafe.getInt(nodeAddress + Node.VALUE_SIZE_OFFSET);
+    }
 
-        final long keyAddress;
-        final long valueAddress;
-        final int keySize;
-        final int valueSize;
-        final long nextNodeAddress;
-        final long hash;
+    private static int getNodeSize(long nodeAddress) {
+        return unsafe.getInt(nodeAddress + Node.NODE_SIZE_OFFSET);
+    }
 
-        Node(long keyAddress, long valueAddress, int keySize, int valueSize, long nextNodeAddress, long hash) {
-            this.keyAddress = keyAddress;
-            this.valueAddress = valueAddress;
-            this.keySize = keySize;
-            this.valueSize = valueSize;
-            this.nextNodeAddress = nextNodeAddress;
-            this.hash = hash;
-        }
+    private static long getKeyAddress(long nodeAddress) {
+        return nodeAddress + Node.HEADER_SIZE;
+    }
+
+    private static long getValueAddress(long nodeAddress) {
+        return getKeyAddress(nodeAddress) + bytesNum(getKeySize(nodeAddress));
+    }
+
+    private static class Node {
+
+        static final int NEXT_NODE_ADDRESS_OFFSET = 0;
+        static final int HASH_OFFSET = NEXT_NODE_ADDRESS_OFFSET + LONG_SIZE;
+        static final int KEY_SIZE_OFFSET = HASH_OFFSET + INT_SIZE;
+        static final int VALUE_SIZE_OFFSET = KEY_SIZE_OFFSET + INT_SIZE;
+        static final int NODE_SIZE_OFFSET = VALUE_SIZE_OFFSET + INT_SIZE;
+
+        static final int HEADER_SIZE = NODE_SIZE_OFFSET + INT_SIZE;
     }
 
     /* ----------------- Byte array storing/reading routines ----------------- */
 
-    private static SizeAndAddress storeArray(byte[] value) {
-        int size;
-        long address;
+    private static int sizeOf(byte[] array) {
+        return array == null ? NULL_SIZE : array.length;
+    }
 
-        if (value == null) {
-            size = NULL_SIZE;
-            address = NO_ADDRESS;
-        } else {
-            size = value.length;
-            if (size == 0) {
-                address = NO_ADDRESS;
-            } else {
-                address = unsafe.allocateMemory(size);
-                unsafe.copyMemory(value, BYTE_ARRAY_OFFSET, null, address, value.length);
-            }
+    // number of bytes occupied by an array of the given size, null arrays don't occupy any space
+    private static int bytesNum(int size) {
+        return size == NULL_SIZE ? 0 : size;
+    }
+
+    private static void storeArray(byte[] value, long address) {
+        if (value != null && value.length != 0) {
+            unsafe.copyMemory(value, BYTE_ARRAY_OFFSET, null, address, value.length);
         }
+    }
 
-        return new SizeAndAddress(size, address);
+    private static long bufferAddressOffset() {
+        try {
+            return unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (NoSuchFieldException e) {
+            throw new Error(e);
+        }
     }
 
-    private static byte[] readArray(long address, int size, boolean deallocate) {
+    private static byte[] readArray(long address, int size) {
         if (size == NULL_SIZE) {
             return null;
         }
@@ -373,20 +1089,6 @@ public class BinaryOffHeapMap implements Map<byte[], byte[]> {
         byte[] array = new byte[size];
         unsafe.copyMemory(null, address, array, BYTE_ARRAY_OFFSET, size);
 
-        if (deallocate) {
-            unsafe.freeMemory(address);
-        }
-
         return array;
     }
-
-    private static class SizeAndAddress {
-        final int size;
-        final long address;
-
-        SizeAndAddress(int size, long address) {
-            this.size = size;
-            this.address = address;
-        }
-    }
 }
@@ -0,0 +1,33 @@
+package com.test.map.offheap;
+
+import sun.misc.Unsafe;
+
+/**
+ * Allocates every block straight from the OS with {@link Unsafe#allocateMemory(long)}.
+ * Overhead of the native allocator itself is unknown, so it isn't reported as fragmentation.
+ */
+public class MallocAllocator implements OffHeapAllocator {
+
+    private static final Unsafe unsafe = UnsafeUtil.getUnsafe();
+
+    private long liveBytes;
+
+    @Override
+    public long allocate(long size) {
+        long address = unsafe.allocateMemory(size);
+        liveBytes += size;
+
+        return address;
+    }
+
+    @Override
+    public void free(long address, long size) {
+        unsafe.freeMemory(address);
+        liveBytes -= size;
+    }
+
+    @Override
+    public AllocatorStats stats() {
+        return new AllocatorStats(liveBytes, liveBytes, 0);
+    }
+}
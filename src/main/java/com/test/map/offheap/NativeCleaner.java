@@ -0,0 +1,70 @@
+package com.test.map.offheap;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs cleanup actions of the objects which have become phantom reachable, a minimal replacement of
+ * {@code java.lang.ref.Cleaner} which isn't available on Java 8.
+ * <p>
+ * Actions are run on a single daemon thread, so they must not refer to the registered object itself
+ * (otherwise it never becomes phantom reachable) and must not block.
+ */
+final class NativeCleaner {
+
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    // references have to be strongly reachable themselves until they are enqueued, otherwise they are just collected
+    private static final Set<Cleanable> cleanables = ConcurrentHashMap.newKeySet();
+
+    static {
+        Thread thread = new Thread(NativeCleaner::processQueue, "off-heap-cleaner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private NativeCleaner() {
+    }
+
+    static Cleanable register(Object referent, Runnable action) {
+        Cleanable cleanable = new Cleanable(referent, action);
+        cleanables.add(cleanable);
+
+        return cleanable;
+    }
+
+    private static void processQueue() {
+        while (true) {
+            try {
+                ((Cleanable) queue.remove()).clean();
+            } catch (InterruptedException e) {
+                // nobody is supposed to interrupt this thread, just keep going
+            } catch (Throwable e) {
+                // a failed action shouldn't stop cleaning of the other objects
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static final class Cleanable extends PhantomReference<Object> {
+
+        private final Runnable action;
+
+        private Cleanable(Object referent, Runnable action) {
+            super(referent, queue);
+            this.action = action;
+        }
+
+        /**
+         * Runs the action unless it has already been run, either explicitly or by the cleaner thread.
+         */
+        void clean() {
+            if (cleanables.remove(this)) {
+                clear();
+                action.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.test.map.offheap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide accounting of the native memory held by the off-heap structures.
+ * <p>
+ * Each live structure owns an {@link Account} which is opened when the structure is created
+ * and closed when its memory is freed, either explicitly or by the cleaner.
+ */
+public final class NativeMemoryTracker {
+
+    private static final Set<Account> accounts = ConcurrentHashMap.newKeySet();
+
+    private NativeMemoryTracker() {
+    }
+
+    static Account open(String name) {
+        Account account = new Account(name);
+        accounts.add(account);
+
+        return account;
+    }
+
+    /**
+     * @return snapshot of the accounts of all the live structures
+     */
+    public static List<Account> accounts() {
+        return new ArrayList<>(accounts);
+    }
+
+    public static long totalBytes() {
+        long total = 0;
+
+        for (Account account : accounts) {
+            total += account.getBytes();
+        }
+
+        return total;
+    }
+
+    public static final class Account {
+
+        private final String name;
+        private final AtomicLong bytes = new AtomicLong();
+
+        private Account(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        // an account is updated only by its owner, so there is no need in CAS, the ordered store is enough for readers
+        void add(long delta) {
+            bytes.lazySet(bytes.get() + delta);
+        }
+
+        void reset() {
+            bytes.lazySet(0);
+        }
+
+        void close() {
+            accounts.remove(this);
+            reset();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + getBytes() + " bytes";
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.test.map.offheap;
+
+/**
+ * Source of the native memory for the off-heap structures.
+ * <p>
+ * Callers have to pass the same size to {@link #free(long, long)} they have requested from {@link #allocate(long)},
+ * so implementations don't need to keep any per-allocation bookkeeping.
+ */
+public interface OffHeapAllocator {
+
+    long allocate(long size);
+
+    void free(long address, long size);
+
+    AllocatorStats stats();
+}
@@ -0,0 +1,194 @@
+package com.test.map.offheap;
+
+import sun.misc.Unsafe;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Size class allocator on top of large slabs.
+ * <p>
+ * Requested sizes are rounded up to one of the size classes (two classes per power of two: 16, 24, 32, 48, 64, ...).
+ * Blocks are carved from the current slab with a bump pointer and freed blocks are kept in per-class free lists
+ * (address of the next free block is stored in the first 8 bytes of a free block), so the OS is involved only
+ * once per slab. Allocations larger than the largest size class go directly to the OS.
+ * <p>
+ * Memory of the slabs is never returned to the OS before {@link #release()}, which frees everything
+ * allocated so far at once. Not thread-safe.
+ */
+public class SlabAllocator implements OffHeapAllocator {
+
+    private static final Unsafe unsafe = UnsafeUtil.getUnsafe();
+
+    private static final int NO_ADDRESS = 0;
+
+    private static final int ALIGNMENT_BITS = 3;
+    private static final int MIN_BLOCK_SIZE = 16;
+    private static final int MAX_BLOCK_SIZE = 32 * 1024;
+
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    private static final int[] CLASS_SIZES;
+    // size class for each aligned size: CLASS_BY_SIZE[(size + 7) >>> 3]
+    private static final byte[] CLASS_BY_SIZE;
+
+    static {
+        int classesNum = 0;
+        int[] sizes = new int[64];
+
+        for (int size = MIN_BLOCK_SIZE; size <= MAX_BLOCK_SIZE; size <<= 1) {
+            sizes[classesNum++] = size;
+
+            int intermediate = size + (size >>> 1);
+            if (intermediate < MAX_BLOCK_SIZE) {
+                sizes[classesNum++] = intermediate;
+            }
+        }
+
+        CLASS_SIZES = Arrays.copyOf(sizes, classesNum);
+        CLASS_BY_SIZE = new byte[(MAX_BLOCK_SIZE >>> ALIGNMENT_BITS) + 1];
+
+        for (int aligned = 0, sizeClass = 0; aligned < CLASS_BY_SIZE.length; aligned++) {
+            while (CLASS_SIZES[sizeClass] < aligned << ALIGNMENT_BITS) {
+                sizeClass++;
+            }
+
+            CLASS_BY_SIZE[aligned] = (byte) sizeClass;
+        }
+    }
+
+    private final int slabSize;
+
+    private final long[] freeLists = new long[CLASS_SIZES.length];
+
+    private long[] slabs = new long[16];
+    private int slabsNum;
+
+    // bump pointer within the current slab
+    private long slabPosition;
+    private long slabLimit;
+
+    // bytes requested by the callers from the slabs
+    private long slabLiveBytes;
+    // allocations which don't fit into any size class, they are rare, so it's fine to box their addresses
+    private final Set<Long> largeBlocks = new HashSet<>();
+    private long largeBytes;
+    private long freeListBytes;
+
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public SlabAllocator(int slabSize) {
+        if (slabSize < MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Slab must accommodate the largest size class: " + slabSize);
+        }
+
+        this.slabSize = slabSize;
+    }
+
+    @Override
+    public long allocate(long size) {
+        if (size > MAX_BLOCK_SIZE) {
+            long address = unsafe.allocateMemory(size);
+
+            largeBlocks.add(address);
+            largeBytes += size;
+
+            return address;
+        }
+
+        slabLiveBytes += size;
+
+        final int sizeClass = sizeClass(size);
+        final int blockSize = CLASS_SIZES[sizeClass];
+
+        final long freeBlock = freeLists[sizeClass];
+        if (freeBlock != NO_ADDRESS) {
+            freeLists[sizeClass] = unsafe.getLong(freeBlock);
+            freeListBytes -= blockSize;
+
+            return freeBlock;
+        }
+
+        if (slabPosition + blockSize > slabLimit) {
+            // the tail of the current slab is lost, it's too small for this block
+            newSlab();
+        }
+
+        long address = slabPosition;
+        slabPosition += blockSize;
+
+        return address;
+    }
+
+    @Override
+    public void free(long address, long size) {
+        if (size > MAX_BLOCK_SIZE) {
+            largeBlocks.remove(address);
+            largeBytes -= size;
+            unsafe.freeMemory(address);
+
+            return;
+        }
+
+        slabLiveBytes -= size;
+
+        final int sizeClass = sizeClass(size);
+
+        unsafe.putLong(address, freeLists[sizeClass]);
+        freeLists[sizeClass] = address;
+        freeListBytes += CLASS_SIZES[sizeClass];
+    }
+
+    @Override
+    public AllocatorStats stats() {
+        long reservedBytes = (long) slabsNum * slabSize + largeBytes;
+        long freeBytes = freeListBytes + (slabLimit - slabPosition);
+
+        return new AllocatorStats(reservedBytes, slabLiveBytes + largeBytes, freeBytes);
+    }
+
+    /**
+     * Returns all the memory to the OS at once, all the blocks allocated so far become invalid.
+     * The allocator itself stays usable.
+     */
+    public void release() {
+        for (int i = 0; i < slabsNum; i++) {
+            unsafe.freeMemory(slabs[i]);
+        }
+
+        for (long address : largeBlocks) {
+            unsafe.freeMemory(address);
+        }
+
+        largeBlocks.clear();
+        largeBytes = 0;
+
+        slabLiveBytes = 0;
+        freeListBytes = 0;
+
+        slabsNum = 0;
+        slabPosition = slabLimit = NO_ADDRESS;
+        Arrays.fill(freeLists, NO_ADDRESS);
+    }
+
+    private void newSlab() {
+        long slab = unsafe.allocateMemory(slabSize);
+
+        if (slabsNum == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabsNum << 1);
+        }
+
+        slabs[slabsNum++] = slab;
+
+        slabPosition = slab;
+        slabLimit = slab + slabSize;
+    }
+
+    private static int sizeClass(long size) {
+        // sizes below the minimal block size are rounded up to it as well
+        return CLASS_BY_SIZE[(int) ((size + (1 << ALIGNMENT_BITS) - 1) >>> ALIGNMENT_BITS)];
+    }
+}